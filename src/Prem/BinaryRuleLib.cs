@@ -0,0 +1,498 @@
+using System;
+using System.Collections.Concurrent;
+using System.Collections.Generic;
+using System.IO;
+using System.IO.MemoryMappedFiles;
+using System.Linq;
+using System.Text;
+using System.Xml.Linq;
+using Microsoft.ProgramSynthesis;
+using Microsoft.ProgramSynthesis.AST;
+using Microsoft.ProgramSynthesis.Rules;
+
+using Prem.Transformer;
+using Prem.Util;
+
+namespace Prem
+{
+    /// <summary>
+    /// A compact binary format of rule libs, as an alternative to the reflection-driven XML format.
+    ///
+    /// Layout (all integers little-endian, strings as in `BinaryWriter.Write(string)`):
+    ///   magic "PREMRLB\0", version (int32)
+    ///   string table: count, strings -- every string below is an index into this table (-1 for null)
+    ///   label table: count, (id, name) -- every label below is an index into this table
+    ///   rule sets: count, each being
+    ///     pattern: count, matchers (Const: literal | Var: env key, left quote, right quote)
+    ///     synthesizedFrom
+    ///     programs: count, each being (score, precondition, byte length, encoded `ProgramNode`)
+    ///       precondition: count, (label, ancestors of the error node) -- see `Precondition`
+    ///                     count, (label, nodes in the tree)
+    ///
+    /// Loading maps the file into memory and decodes rule sets, patterns and preconditions eagerly,
+    /// but programs lazily: a program is only decoded (and the grammar only compiled) when it is first
+    /// applied to an input meeting its precondition.
+    /// </summary>
+    public static class BinaryRuleLib
+    {
+        private static readonly byte[] MAGIC = Encoding.ASCII.GetBytes("PREMRLB\0");
+
+        public const int VERSION = 3;
+
+        // Matcher tags.
+        private const byte CONST = 0;
+        private const byte VAR = 1;
+
+        // Program node tags.
+        private const byte NONTERMINAL_NODE = 0;
+        private const byte LITERAL_NODE = 1;
+        private const byte VARIABLE_NODE = 2;
+
+        // Literal value tags.
+        private const byte INT = 0;
+        private const byte STRING = 1;
+        private const byte LABEL = 2;
+        private const byte ENV_KEY = 3;
+        private const byte SUB_KIND_OF = 4;
+        private const byte SUPER_KIND_OF = 5;
+        private const byte SIBLINGS_CONTAINS_LEAF = 6;
+        private const byte SIBLINGS_CONTAINS_FEATURE = 7;
+        private const byte SIBLINGS_CONTAINS_ERR_TOKEN = 8;
+        private const byte CONTAINS_ERR_TOKEN = 9;
+        private const byte XML = 255; // any other value, in the XML format
+
+        /// <summary>
+        /// Check if a file is in the binary format, by its magic number.
+        /// </summary>
+        public static bool IsBinary(string file)
+        {
+            using (var stream = File.OpenRead(file))
+            {
+                var head = new byte[MAGIC.Length];
+                return stream.Read(head, 0, head.Length) == head.Length && head.SequenceEqual(MAGIC);
+            }
+        }
+
+        public static void Save(RuleLib lib, string file)
+        {
+            var tables = new Tables();
+            var body = new MemoryStream();
+            using (var writer = new BinaryWriter(body, Encoding.UTF8, true))
+            {
+                writer.Write(lib.ruleSets.Count);
+                foreach (var ruleSet in lib.ruleSets)
+                {
+                    WritePattern(writer, tables, ruleSet.errPattern);
+                    writer.Write(tables.String(ruleSet.synthesizedFrom));
+                    writer.Write(ruleSet.transformers.Count);
+                    foreach (var program in ruleSet.transformers)
+                    {
+                        var blob = new MemoryStream();
+                        using (var programWriter = new BinaryWriter(blob, Encoding.UTF8, true))
+                        {
+                            WriteProgram(programWriter, tables, program.Program);
+                        }
+                        writer.Write(program.score);
+                        WritePrecondition(writer, tables, program.precondition);
+                        writer.Write((int)blob.Length);
+                        blob.WriteTo(body);
+                    }
+                }
+            }
+
+            using (var writer = new BinaryWriter(File.Create(file), Encoding.UTF8))
+            {
+                writer.Write(MAGIC);
+                writer.Write(VERSION);
+                writer.Write(tables.strings.Count);
+                tables.strings.ForEach(writer.Write);
+                writer.Write(tables.labels.Count);
+                foreach (var label in tables.labels)
+                {
+                    writer.Write(label.id);
+                    writer.Write(tables.String(label.name));
+                }
+                body.WriteTo(writer.BaseStream);
+            }
+        }
+
+        public static RuleLib Load(string file)
+        {
+            var length = new FileInfo(file).Length;
+            if (length < MAGIC.Length + sizeof(int))
+            {
+                throw new FormatException($"{file}: not a binary rule lib.");
+            }
+
+            using (var mmf = MemoryMappedFile.CreateFromFile(file, FileMode.Open, null, 0, MemoryMappedFileAccess.Read))
+            using (var view = mmf.CreateViewStream(0, length, MemoryMappedFileAccess.Read))
+            using (var reader = new BinaryReader(view, Encoding.UTF8))
+            {
+                if (!reader.ReadBytes(MAGIC.Length).SequenceEqual(MAGIC))
+                {
+                    throw new FormatException($"{file}: not a binary rule lib.");
+                }
+                var version = reader.ReadInt32();
+                if (version != VERSION)
+                {
+                    throw new FormatException($"{file}: unsupported version {version}, expected {VERSION}.");
+                }
+
+                var strings = new string[reader.ReadInt32()];
+                for (int i = 0; i < strings.Length; i++)
+                {
+                    strings[i] = reader.ReadString();
+                }
+                var labels = new Label[reader.ReadInt32()];
+                for (int i = 0; i < labels.Length; i++)
+                {
+                    var id = reader.ReadInt32();
+                    var name = reader.ReadInt32();
+                    labels[i] = new Label(id, name < 0 ? null : strings[name]);
+                }
+                var decoder = new ProgramDecoder(strings, labels);
+
+                var ruleSetCount = reader.ReadInt32();
+                var ruleSets = new List<RuleSet>(ruleSetCount);
+                for (int i = 0; i < ruleSetCount; i++)
+                {
+                    var pattern = ReadPattern(reader, decoder);
+                    var synthesizedFrom = decoder.String(reader.ReadInt32());
+                    var programCount = reader.ReadInt32();
+                    var programs = new List<TProgram>(programCount);
+                    for (int j = 0; j < programCount; j++)
+                    {
+                        var score = reader.ReadDouble();
+                        var precondition = ReadPrecondition(reader, labels);
+                        var blob = reader.ReadBytes(reader.ReadInt32());
+                        programs.Add(new TProgram(() => decoder.Decode(blob), score, precondition));
+                    }
+                    ruleSets.Add(new RuleSet(pattern, programs, synthesizedFrom));
+                }
+
+                return new RuleLib(ruleSets);
+            }
+        }
+
+        /// <summary>
+        /// String and label tables being built, where every distinct string/label is stored once.
+        /// </summary>
+        private class Tables
+        {
+            public List<string> strings = new List<string>();
+
+            private Dictionary<string, int> _string_index = new Dictionary<string, int>();
+
+            public List<Label> labels = new List<Label>();
+
+            // (id, name) -> index: error labels share ids with others
+            private Dictionary<(int, string), int> _label_index = new Dictionary<(int, string), int>();
+
+            public int String(string s)
+            {
+                if (s == null) return -1;
+
+                int index;
+                if (!_string_index.TryGetValue(s, out index))
+                {
+                    index = strings.Count;
+                    strings.Add(s);
+                    _string_index[s] = index;
+                }
+                return index;
+            }
+
+            public int Label(Label label)
+            {
+                int index;
+                if (!_label_index.TryGetValue((label.id, label.name), out index))
+                {
+                    String(label.name); // the string table is written before the label table
+                    index = labels.Count;
+                    labels.Add(label);
+                    _label_index[(label.id, label.name)] = index;
+                }
+                return index;
+            }
+        }
+
+        private static void WritePattern(BinaryWriter writer, Tables tables, ErrPattern pattern)
+        {
+            writer.Write(pattern.Length);
+            foreach (var matcher in pattern.matchers)
+            {
+                switch (matcher)
+                {
+                    case Const c:
+                        writer.Write(CONST);
+                        writer.Write(tables.String(c.literal));
+                        break;
+                    case Var v:
+                        writer.Write(VAR);
+                        WriteEnvKey(writer, v.var);
+                        writer.Write(tables.String(v.quotePair.left));
+                        writer.Write(tables.String(v.quotePair.right));
+                        break;
+                    default:
+                        throw new NotSupportedException($"Matcher {matcher.GetType()} is not supported.");
+                }
+            }
+        }
+
+        private static ErrPattern ReadPattern(BinaryReader reader, ProgramDecoder decoder)
+        {
+            var count = reader.ReadInt32();
+            var matchers = new List<Matcher>(count);
+            for (int i = 0; i < count; i++)
+            {
+                var tag = reader.ReadByte();
+                switch (tag)
+                {
+                    case CONST:
+                        matchers.Add(new Const(decoder.String(reader.ReadInt32())));
+                        break;
+                    case VAR:
+                        var key = ReadEnvKey(reader);
+                        var left = decoder.String(reader.ReadInt32());
+                        var right = decoder.String(reader.ReadInt32());
+                        matchers.Add(new Var(key, (left, right)));
+                        break;
+                    default:
+                        throw new FormatException($"Unknown matcher tag {tag}.");
+                }
+            }
+            return new ErrPattern(matchers);
+        }
+
+        private static void WritePrecondition(BinaryWriter writer, Tables tables, Precondition precondition)
+        {
+            foreach (var counts in new[] { precondition.errAncestors, precondition.labels })
+            {
+                writer.Write(counts.Count);
+                foreach (var p in counts)
+                {
+                    writer.Write(tables.Label(p.Key));
+                    writer.Write(p.Value);
+                }
+            }
+        }
+
+        private static Precondition ReadPrecondition(BinaryReader reader, Label[] labels)
+        {
+            Dictionary<Label, int> ReadCounts()
+            {
+                var count = reader.ReadInt32();
+                var counts = new Dictionary<Label, int>(count);
+                for (int i = 0; i < count; i++)
+                {
+                    var label = labels[reader.ReadInt32()];
+                    counts[label] = reader.ReadInt32();
+                }
+                return counts;
+            }
+
+            var errAncestors = ReadCounts();
+            return new Precondition(errAncestors, ReadCounts());
+        }
+
+        private static void WriteEnvKey(BinaryWriter writer, EnvKey key)
+        {
+            writer.Write(key.Keys.Count);
+            foreach (var k in key.Keys)
+            {
+                writer.Write(k);
+            }
+        }
+
+        private static EnvKey ReadEnvKey(BinaryReader reader)
+        {
+            var count = reader.ReadInt32();
+            var keys = new List<int>(count);
+            for (int i = 0; i < count; i++)
+            {
+                keys.Add(reader.ReadInt32());
+            }
+            return new EnvKey(keys);
+        }
+
+        private static void WriteProgram(BinaryWriter writer, Tables tables, ProgramNode node)
+        {
+            switch (node)
+            {
+                case NonterminalNode n:
+                    writer.Write(NONTERMINAL_NODE);
+                    writer.Write(tables.String(n.Rule.ToString()));
+                    writer.Write(n.Children.Count());
+                    foreach (var child in n.Children)
+                    {
+                        WriteProgram(writer, tables, child);
+                    }
+                    break;
+                case LiteralNode n:
+                    writer.Write(LITERAL_NODE);
+                    writer.Write(tables.String(n.Symbol.ToString()));
+                    WriteValue(writer, tables, n.Value);
+                    break;
+                case VariableNode n:
+                    writer.Write(VARIABLE_NODE);
+                    writer.Write(tables.String(n.Symbol.ToString()));
+                    break;
+                default:
+                    throw new NotSupportedException($"{node.GetType()} is not supported yet!");
+            }
+        }
+
+        private static void WriteValue(BinaryWriter writer, Tables tables, object value)
+        {
+            switch (value)
+            {
+                case int i:
+                    writer.Write(INT);
+                    writer.Write(i);
+                    break;
+                case string s:
+                    writer.Write(STRING);
+                    writer.Write(tables.String(s));
+                    break;
+                case Label l:
+                    writer.Write(LABEL);
+                    writer.Write(tables.Label(l));
+                    break;
+                case EnvKey k:
+                    writer.Write(ENV_KEY);
+                    WriteEnvKey(writer, k);
+                    break;
+                case SubKindOf f:
+                    writer.Write(SUB_KIND_OF);
+                    writer.Write(tables.Label(f.super));
+                    break;
+                case SuperKindOf f:
+                    writer.Write(SUPER_KIND_OF);
+                    writer.Write(tables.Label(f.sub));
+                    break;
+                case SiblingsContainsLeaf f:
+                    writer.Write(SIBLINGS_CONTAINS_LEAF);
+                    writer.Write(tables.Label(f.label));
+                    writer.Write(tables.String(f.token));
+                    break;
+                case SiblingsContainsFeature f:
+                    writer.Write(SIBLINGS_CONTAINS_FEATURE);
+                    writer.Write(tables.Label(f.label));
+                    writer.Write(f.index);
+                    break;
+                case SiblingsContainsErrToken _:
+                    writer.Write(SIBLINGS_CONTAINS_ERR_TOKEN);
+                    break;
+                case ContainsErrToken _:
+                    writer.Write(CONTAINS_ERR_TOKEN);
+                    break;
+                default:
+                    var xe = new XElement("Value");
+                    ASTSerialization.Serialization.fillXElement(value, xe);
+                    writer.Write(XML);
+                    writer.Write(tables.String(xe.ToString(SaveOptions.DisableFormatting)));
+                    break;
+            }
+        }
+
+        /// <summary>
+        /// Decodes programs of one rule lib file, against the tables of that file.
+        /// Rules and symbols are resolved in the grammar once per name.
+        /// Programs may be decoded from several threads at a time.
+        /// </summary>
+        private class ProgramDecoder
+        {
+            private string[] _strings;
+
+            private Label[] _labels;
+
+            private ConcurrentDictionary<int, NonterminalRule> _rules =
+                new ConcurrentDictionary<int, NonterminalRule>();
+
+            private ConcurrentDictionary<int, Symbol> _symbols = new ConcurrentDictionary<int, Symbol>();
+
+            public ProgramDecoder(string[] strings, Label[] labels)
+            {
+                this._strings = strings;
+                this._labels = labels;
+            }
+
+            public string String(int index) => index < 0 ? null : _strings[index];
+
+            public ProgramNode Decode(byte[] blob)
+            {
+                var grammar = TLearner.Grammar;
+                using (var reader = new BinaryReader(new MemoryStream(blob, false), Encoding.UTF8))
+                {
+                    return ReadProgram(reader, grammar);
+                }
+            }
+
+            private ProgramNode ReadProgram(BinaryReader reader, Grammar grammar)
+            {
+                var tag = reader.ReadByte();
+                switch (tag)
+                {
+                    case NONTERMINAL_NODE:
+                    {
+                        var rule = _rules.GetOrAdd(reader.ReadInt32(),
+                            i => (NonterminalRule)grammar.Rule(_strings[i]));
+                        var children = new ProgramNode[reader.ReadInt32()];
+                        for (int i = 0; i < children.Length; i++)
+                        {
+                            children[i] = ReadProgram(reader, grammar);
+                        }
+                        return new NonterminalNode(rule, children);
+                    }
+                    case LITERAL_NODE:
+                        return new LiteralNode(ReadSymbol(reader, grammar), ReadValue(reader));
+                    case VARIABLE_NODE:
+                        return new VariableNode(ReadSymbol(reader, grammar));
+                    default:
+                        throw new FormatException($"Unknown program node tag {tag}.");
+                }
+            }
+
+            private Symbol ReadSymbol(BinaryReader reader, Grammar grammar) =>
+                _symbols.GetOrAdd(reader.ReadInt32(), i => grammar.Symbol(_strings[i]));
+
+            private object ReadValue(BinaryReader reader)
+            {
+                var tag = reader.ReadByte();
+                switch (tag)
+                {
+                    case INT:
+                        return reader.ReadInt32();
+                    case STRING:
+                        return String(reader.ReadInt32());
+                    case LABEL:
+                        return _labels[reader.ReadInt32()];
+                    case ENV_KEY:
+                        return ReadEnvKey(reader);
+                    case SUB_KIND_OF:
+                        return new SubKindOf(_labels[reader.ReadInt32()]);
+                    case SUPER_KIND_OF:
+                        return new SuperKindOf(_labels[reader.ReadInt32()]);
+                    case SIBLINGS_CONTAINS_LEAF:
+                    {
+                        var label = _labels[reader.ReadInt32()];
+                        return new SiblingsContainsLeaf(label, String(reader.ReadInt32()));
+                    }
+                    case SIBLINGS_CONTAINS_FEATURE:
+                    {
+                        var label = _labels[reader.ReadInt32()];
+                        return new SiblingsContainsFeature(label, reader.ReadInt32());
+                    }
+                    case SIBLINGS_CONTAINS_ERR_TOKEN:
+                        return new SiblingsContainsErrToken();
+                    case CONTAINS_ERR_TOKEN:
+                        return new ContainsErrToken();
+                    case XML:
+                        return ASTSerialization.Serialization.makeObject(XElement.Parse(_strings[reader.ReadInt32()]));
+                    default:
+                        throw new FormatException($"Unknown value tag {tag}.");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import com.sun.source.util.JavacTask;
+
+/**
+ * A resident JVM helper for PREM.
+ *
+ * Requests are read line by line from stdin, each of which is a tab-separated list of fields,
+ * the first being the command name. A command taking a body (e.g. source text) has the body
+ * length as its last field, and the body of exactly that many chars follows the line.
+ * Responses are written to stdout in the same order as requests, each of the form: a header line
+ * `ok <length>` or `error <length>`, immediately followed by a body of exactly `<length>` chars.
+ * The client may thus pipeline requests.
+ *
+ * Commands:
+ *   parse <lang> <file>    run the UTrans parser on <file> and reply with its JSON output
+ *   compile <length>       compile the Java source in the body with javac (without generating class files),
+ *                          reply with all errors, one `<line>\t<column>\t<message>` per line, sorted by
+ *                          position; an empty reply means it compiles
+ */
+public class PremHelper {
+    /** Protocol output, i.e. the real stdout. */
+    private static Writer out;
+
+    /** UTrans writes its result to `System.out`, which we redirect into this buffer. */
+    private static final Capture capture = new Capture();
+
+    private static Method utransMain;
+
+    private static BufferedReader in;
+
+    private static JavaCompiler javac;
+
+    private static JavaFileManager fileManager;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java -cp <UTrans jar> PremHelper.java <UTrans jar>");
+            System.exit(1);
+        }
+        String utransJar = args[0];
+
+        out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8));
+        System.setOut(new PrintStream(capture, true, "UTF-8"));
+        preventExit();
+
+        in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty()) continue;
+
+            String[] fields = line.split("\t", -1);
+            try {
+                reply("ok", dispatch(utransJar, fields));
+            } catch (Throwable e) {
+                reply("error", e.toString());
+            }
+        }
+    }
+
+    private static String dispatch(String utransJar, String[] fields) throws Exception {
+        switch (fields[0]) {
+            case "parse":
+                expectFields(fields, 3);
+                return parse(utransJar, fields[1], fields[2]);
+            case "compile":
+                expectFields(fields, 2);
+                return compile(readBody(fields[1]));
+            default:
+                throw new IllegalArgumentException("Unknown command: " + fields[0]);
+        }
+    }
+
+    private static void expectFields(String[] fields, int count) {
+        if (fields.length != count) {
+            throw new IllegalArgumentException(
+                    "Command " + fields[0] + " expects " + (count - 1) + " argument(s)");
+        }
+    }
+
+    private static String readBody(String length) throws IOException {
+        char[] body = new char[Integer.parseInt(length)];
+        int read = 0;
+        while (read < body.length) {
+            int n = in.read(body, read, body.length - read);
+            if (n < 0) throw new IOException("Unexpected end of request body");
+            read += n;
+        }
+        return new String(body);
+    }
+
+    private static void reply(String status, String body) throws IOException {
+        out.write(status + " " + body.length() + "\n");
+        out.write(body);
+        out.flush();
+    }
+
+    private static String parse(String utransJar, String lang, String file) throws Exception {
+        if (utransMain == null) {
+            String mainClass;
+            try (JarFile jar = new JarFile(utransJar)) {
+                mainClass = jar.getManifest().getMainAttributes().getValue("Main-Class");
+            }
+            utransMain = Class.forName(mainClass).getMethod("main", String[].class);
+        }
+
+        capture.reset();
+        try {
+            utransMain.invoke(null, (Object) new String[] { file, "-l", lang, "-m", "parse" });
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException("UTrans failed on " + file + ": " + e.getCause(), e.getCause());
+        } finally {
+            System.out.flush();
+        }
+
+        String json = capture.content();
+        if (json.isEmpty()) {
+            throw new IllegalStateException("Empty output for " + file);
+        }
+        return json;
+    }
+
+    private static final Pattern PUBLIC_TYPE =
+            Pattern.compile("public\\s+(?:(?:abstract|final|static|strictfp)\\s+)*(?:class|interface|enum)\\s+(\\w+)");
+
+    private static String compile(String code) throws IOException {
+        if (javac == null) {
+            javac = ToolProvider.getSystemJavaCompiler();
+            if (javac == null) {
+                throw new IllegalStateException("No system Java compiler, is this a JRE?");
+            }
+            StandardJavaFileManager standard = javac.getStandardFileManager(null, Locale.ENGLISH, StandardCharsets.UTF_8);
+            fileManager = new MemoryFileManager(standard);
+        }
+
+        // A public class must be declared in a file of the same name.
+        Matcher m = PUBLIC_TYPE.matcher(code);
+        String name = m.find() ? m.group(1) : "Main";
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavacTask task = (JavacTask) javac.getTask(null, fileManager, diagnostics,
+                Arrays.asList("-proc:none", "-Xlint:none"), null, Arrays.asList(new Source(name, code)));
+        // Parse, attribute and flow-analyze, but don't generate class files.
+        task.analyze();
+
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+            if (d.getKind() == Diagnostic.Kind.ERROR && d.getPosition() != Diagnostic.NOPOS) {
+                errors.add(d);
+            }
+        }
+        errors.sort(Comparator.comparingLong(Diagnostic::getPosition));
+
+        StringBuilder sb = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> d : errors) {
+            // Only the first line, like "error: cannot find symbol", the details follow in other lines.
+            String message = d.getMessage(Locale.ENGLISH).split("\\R", 2)[0];
+            sb.append(d.getLineNumber()).append('\t').append(d.getColumnNumber())
+              .append("\terror: ").append(message).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+        private final String code;
+
+        Source(String name, String code) {
+            super(URI.create("string:///" + name + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    /**
+     * Keeps the standard file manager (and thus its caches of the platform classes) across requests,
+     * and never touches the file system for outputs.
+     */
+    private static class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        MemoryFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                   FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    return new ByteArrayOutputStream();
+                }
+            };
+        }
+    }
+
+    /**
+     * UTrans may call `System.exit` on failures, which must not kill the service.
+     * JDK 18+ only allows installing a security manager with `-Djava.security.manager=allow`,
+     * which the client passes (up to JDK 23). On JDK 24+ it is unsupported; then the client
+     * notices the broken pipe and falls back to spawning one process per file.
+     */
+    @SuppressWarnings("removal")
+    private static void preventExit() {
+        try {
+            System.setSecurityManager(new SecurityManager() {
+                @Override
+                public void checkExit(int status) {
+                    throw new SecurityException("System.exit(" + status + ") is not allowed in helper mode");
+                }
+
+                @Override
+                public void checkPermission(Permission perm) {
+                }
+            });
+        } catch (UnsupportedOperationException | SecurityException e) {
+            System.err.println("Warning: cannot guard System.exit: " + e);
+        }
+    }
+
+    private static class Capture extends OutputStream {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void write(int b) {
+            buffer.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            buffer.write(b, off, len);
+        }
+
+        synchronized void reset() {
+            buffer.reset();
+        }
+
+        synchronized String content() {
+            return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
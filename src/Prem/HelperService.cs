@@ -0,0 +1,313 @@
+using System;
+using System.Collections.Generic;
+using System.Diagnostics;
+using System.IO;
+using System.Linq;
+using System.Text;
+using System.Text.RegularExpressions;
+using System.Threading;
+using System.Threading.Tasks;
+using Microsoft.ProgramSynthesis.Utils;
+
+using Prem.Util;
+
+namespace Prem
+{
+    public class HelperException : Exception
+    {
+        public HelperException(string message) : base(message) { }
+    }
+
+    /// <summary>
+    /// A client of the resident JVM helper (`Helper/PremHelper.java`), which is started once
+    /// and then serves many requests over stdin/stdout.
+    ///
+    /// Each request is a line of tab-separated fields; each response is a header `ok <length>`
+    /// or `error <length>` followed by a body of exactly `<length>` chars.
+    /// Responses come back in request order, so requests can be pipelined:
+    /// `RequestAsync` only writes the request and returns, a background thread reads responses
+    /// and completes the pending tasks in FIFO order.
+    /// </summary>
+    public class HelperService
+    {
+        private static ColorLogger Log = ColorLogger.Instance;
+
+        private const string HELPER_SOURCE = "PremHelper.java";
+
+        private Process _process;
+
+        private StreamWriter _stdin;
+
+        private StreamReader _stdout;
+
+        private Queue<TaskCompletionSource<string>> _pending = new Queue<TaskCompletionSource<string>>();
+
+        // Protects `_pending`, `_stdin` and `_alive`.
+        private readonly object _lock = new object();
+
+        private bool _alive;
+
+        public bool IsAlive
+        {
+            get { lock (_lock) return _alive; }
+        }
+
+        private HelperService(Process process)
+        {
+            this._process = process;
+            this._stdin = new StreamWriter(process.StandardInput.BaseStream, new UTF8Encoding(false));
+            this._stdout = new StreamReader(process.StandardOutput.BaseStream, new UTF8Encoding(false));
+            this._alive = true;
+
+            var reader = new Thread(ReadResponses);
+            reader.IsBackground = true;
+            reader.Start();
+        }
+
+        /// <summary>
+        /// Start the helper with the given class path.
+        /// </summary>
+        /// <param name="classPath">Class path, e.g. the UTrans jar.</param>
+        /// <param name="args">Arguments passed to the helper.</param>
+        /// <returns>The service, or nothing if the helper fails to start.</returns>
+        public static Optional<HelperService> Start(string classPath, params string[] args)
+        {
+            var source = LocateHelperSource();
+            if (!source.HasValue)
+            {
+                Log.Warning("Helper source {0} not found.", HELPER_SOURCE);
+                return Optional<HelperService>.Nothing;
+            }
+
+            try
+            {
+                var process = new Process();
+                process.StartInfo.FileName = "java";
+                // NOTE: paths shouldn't have empty spaces.
+                process.StartInfo.Arguments = $"{SecurityManagerOption()}-cp {classPath} {source.Value} {String.Join(" ", args)}";
+                process.StartInfo.UseShellExecute = false;
+                process.StartInfo.RedirectStandardInput = true;
+                process.StartInfo.RedirectStandardOutput = true;
+                process.StartInfo.RedirectStandardError = true;
+                Log.Debug("CLI: {0} {1}", process.StartInfo.FileName, process.StartInfo.Arguments);
+
+                if (!process.Start())
+                {
+                    return Optional<HelperService>.Nothing;
+                }
+                // Drain stderr, otherwise the helper blocks once the pipe buffer is full.
+                process.ErrorDataReceived += (sender, e) => {
+                    if (e.Data != null) Log.Debug("Helper: {0}", e.Data);
+                };
+                process.BeginErrorReadLine();
+
+                return new HelperService(process).Some();
+            }
+            catch (Exception e)
+            {
+                Log.Warning("Failed to start helper. Exception caught: {0}: {1}", e.GetType(), e.Message);
+                return Optional<HelperService>.Nothing;
+            }
+        }
+
+        private static Optional<string> LocateHelperSource()
+        {
+            var candidates = new[] {
+                Path.Combine(AppContext.BaseDirectory, "Helper", HELPER_SOURCE),
+                Path.Combine(Directory.GetCurrentDirectory(), "Helper", HELPER_SOURCE)
+            };
+            return candidates.TryFirst(File.Exists);
+        }
+
+        /// <summary>
+        /// The helper installs a security manager to guard `System.exit`. JDK 18 to 23 only allow that with
+        /// `-Djava.security.manager=allow`, which JDK 11 (taking the value as a class name) and
+        /// JDK 24+ (where security managers are gone) reject at startup: pass it to JDK 12 to 23 only.
+        /// </summary>
+        private static string SecurityManagerOption()
+        {
+            var version = JavaVersion.Value;
+            return version >= 12 && version < 24 ? "-Djava.security.manager=allow " : "";
+        }
+
+        private static Lazy<int> JavaVersion = new Lazy<int>(() => {
+            try
+            {
+                using (var process = new Process())
+                {
+                    process.StartInfo.FileName = "java";
+                    process.StartInfo.Arguments = "-version";
+                    process.StartInfo.UseShellExecute = false;
+                    process.StartInfo.RedirectStandardOutput = true;
+                    process.StartInfo.RedirectStandardError = true;
+                    if (!process.Start()) return 0;
+
+                    // e.g. `openjdk version "17.0.2" 2022-01-18`, or `java version "1.8.0_292"`
+                    var output = process.StandardError.ReadToEnd();
+                    process.WaitForExit();
+                    var m = Regex.Match(output, @"version ""(\d+)(?:\.(\d+))?");
+                    if (!m.Success) return 0;
+                    var major = int.Parse(m.Groups[1].Value);
+                    return major == 1 && m.Groups[2].Success ? int.Parse(m.Groups[2].Value) : major;
+                }
+            }
+            catch (Exception e)
+            {
+                Log.Debug("Failed to find the java version: {0}", e.Message);
+                return 0;
+            }
+        });
+
+        /// <summary>
+        /// Send a request without waiting for its response.
+        /// </summary>
+        /// <param name="fields">Command name followed by its arguments.</param>
+        /// <returns>A task completed with the response body, or faulted with `HelperException`.</returns>
+        public Task<string> RequestAsync(params string[] fields) => RequestAsync(fields, null);
+
+        /// <summary>
+        /// Send a request carrying a body (e.g. source text) without waiting for its response.
+        /// The body length is appended to `fields`, and the body follows the request line.
+        /// </summary>
+        /// <param name="fields">Command name followed by its arguments.</param>
+        /// <param name="body">The body, or null if the command takes no body.</param>
+        /// <returns>A task completed with the response body, or faulted with `HelperException`.</returns>
+        public Task<string> RequestAsync(string[] fields, string body)
+        {
+            if (body != null)
+            {
+                fields = fields.Concat(body.Length.ToString().Single()).ToArray();
+            }
+
+            var tcs = new TaskCompletionSource<string>(TaskCreationOptions.RunContinuationsAsynchronously);
+            lock (_lock)
+            {
+                if (!_alive)
+                {
+                    tcs.SetException(new HelperException("Helper is not running."));
+                    return tcs.Task;
+                }
+
+                try
+                {
+                    _stdin.Write(String.Join("\t", fields));
+                    _stdin.Write('\n');
+                    if (body != null) _stdin.Write(body);
+                    _stdin.Flush();
+                    _pending.Enqueue(tcs);
+                }
+                catch (IOException e)
+                {
+                    MarkDead();
+                    tcs.SetException(new HelperException("Helper pipe broken: " + e.Message));
+                }
+            }
+
+            return tcs.Task;
+        }
+
+        /// <summary>
+        /// Send a request and wait for its response.
+        /// </summary>
+        public string Request(params string[] fields) => Request(fields, null);
+
+        /// <summary>
+        /// Send a request carrying a body and wait for its response.
+        /// </summary>
+        public string Request(string[] fields, string body)
+        {
+            try
+            {
+                return RequestAsync(fields, body).Result;
+            }
+            catch (AggregateException e)
+            {
+                throw e.InnerException;
+            }
+        }
+
+        private void ReadResponses()
+        {
+            try
+            {
+                while (true)
+                {
+                    var header = _stdout.ReadLine();
+                    if (header == null) break;
+
+                    var parts = header.Split(' ');
+                    int length;
+                    if (parts.Length != 2 || !int.TryParse(parts[1], out length))
+                    {
+                        Log.Warning("Helper: malformed response header: {0}", header);
+                        break;
+                    }
+
+                    var body = new char[length];
+                    int read = 0;
+                    while (read < length)
+                    {
+                        var n = _stdout.Read(body, read, length - read);
+                        if (n == 0) break;
+                        read += n;
+                    }
+                    if (read < length) break;
+
+                    TaskCompletionSource<string> tcs;
+                    lock (_lock)
+                    {
+                        tcs = _pending.Dequeue();
+                    }
+
+                    var content = new string(body);
+                    if (parts[0] == "ok") tcs.SetResult(content);
+                    else tcs.SetException(new HelperException(content));
+                }
+            }
+            catch (Exception e)
+            {
+                Log.Debug("Helper: reader stopped: {0}: {1}", e.GetType(), e.Message);
+            }
+
+            lock (_lock)
+            {
+                MarkDead();
+            }
+        }
+
+        // Must be called with `_lock` held.
+        private void MarkDead()
+        {
+            _alive = false;
+            while (_pending.Any())
+            {
+                _pending.Dequeue().TrySetException(new HelperException("Helper exited unexpectedly."));
+            }
+        }
+
+        /// <summary>
+        /// Close the helper: it exits once its stdin is closed.
+        /// </summary>
+        public void Close()
+        {
+            lock (_lock)
+            {
+                if (!_alive) return;
+                _alive = false;
+                try
+                {
+                    _stdin.Close();
+                }
+                catch (IOException)
+                {
+                }
+            }
+
+            if (!_process.WaitForExit(1000))
+            {
+                _process.Kill();
+            }
+            _process.Dispose();
+        }
+    }
+}
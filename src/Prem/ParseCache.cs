@@ -0,0 +1,271 @@
+using System;
+using System.Collections.Generic;
+using System.IO;
+using System.Linq;
+using System.Security.Cryptography;
+using System.Text;
+using Microsoft.ProgramSynthesis.Utils;
+
+using Prem.Util;
+
+namespace Prem
+{
+    /// <summary>
+    /// A persistent, content-addressed cache of parsed trees, shared across runs.
+    ///
+    /// An entry is keyed by the SHA-256 of the language, the parser version and the source bytes,
+    /// thus an edited source, or an upgraded parser, simply misses the cache.
+    /// Each entry is a file `<key>.tree` holding the tree in a compact binary form (see `Write`).
+    /// The cache is bounded in size: once exceeded, least recently used entries (by file modification
+    /// time, which is refreshed on every hit) are evicted.
+    ///
+    /// Entries are written to a temporary file and then renamed, so that concurrent runs
+    /// sharing a cache folder never see partial entries.
+    /// </summary>
+    public class ParseCache
+    {
+        private static ColorLogger Log = ColorLogger.Instance;
+
+        // Bump this whenever the tree format changes.
+        private const int FORMAT_VERSION = 1;
+
+        private const string SUFFIX = ".tree";
+
+        private string _dir;
+
+        private byte[] _salt;
+
+        private long _max_size;
+
+        private long _size;
+
+        // Protects `_size` and eviction.
+        private readonly object _lock = new object();
+
+        public int hits { get; private set; }
+
+        public int misses { get; private set; }
+
+        /// <summary>
+        /// Open (or create) a cache folder.
+        /// </summary>
+        /// <param name="dir">Cache folder.</param>
+        /// <param name="lang">Language.</param>
+        /// <param name="parserVersion">Parser version, any string which changes when the parser changes.</param>
+        /// <param name="maxSize">Maximal total size of entries, in bytes.</param>
+        public ParseCache(string dir, string lang, string parserVersion, long maxSize)
+        {
+            this._dir = dir;
+            this._salt = Encoding.UTF8.GetBytes($"{FORMAT_VERSION}\0{lang}\0{parserVersion}\0");
+            this._max_size = maxSize;
+
+            Directory.CreateDirectory(dir);
+            _size = Entries().Sum(f => f.Length);
+            Log.Debug("Parse cache: {0}, {1} bytes in use.", dir, _size);
+        }
+
+        private IEnumerable<FileInfo> Entries() =>
+            new DirectoryInfo(_dir).EnumerateFiles("*" + SUFFIX, SearchOption.TopDirectoryOnly);
+
+        private string EntryPath(string sourceFile)
+        {
+            using (var sha = SHA256.Create())
+            {
+                var source = File.ReadAllBytes(sourceFile);
+                sha.TransformBlock(_salt, 0, _salt.Length, null, 0);
+                sha.TransformFinalBlock(source, 0, source.Length);
+                var key = String.Concat(sha.Hash.Select(b => b.ToString("x2")));
+                return Path.Combine(_dir, key + SUFFIX);
+            }
+        }
+
+        /// <summary>
+        /// Look up the tree of a source file.
+        /// </summary>
+        /// <param name="sourceFile">Source file.</param>
+        /// <returns>A fresh tree if cached, otherwise nothing.</returns>
+        public Optional<SyntaxNodeContext> TryGet(string sourceFile)
+        {
+            var path = EntryPath(sourceFile);
+            try
+            {
+                SyntaxNodeContext tree;
+                using (var reader = new BinaryReader(File.OpenRead(path), Encoding.UTF8))
+                {
+                    tree = Read(reader);
+                }
+                File.SetLastWriteTimeUtc(path, DateTime.UtcNow); // mark as recently used
+
+                lock (_lock) hits++;
+                return tree.Some();
+            }
+            catch (FileNotFoundException)
+            {
+            }
+            catch (Exception e)
+            {
+                Log.Warning("Parse cache: remove broken entry {0}: {1}: {2}", path, e.GetType(), e.Message);
+                try
+                {
+                    File.Delete(path);
+                }
+                catch (IOException)
+                {
+                }
+            }
+
+            lock (_lock) misses++;
+            return Optional<SyntaxNodeContext>.Nothing;
+        }
+
+        /// <summary>
+        /// Store the tree of a source file.
+        /// </summary>
+        /// <param name="sourceFile">Source file.</param>
+        /// <param name="tree">Its tree, as parsed.</param>
+        public void Put(string sourceFile, SyntaxNodeContext tree)
+        {
+            var path = EntryPath(sourceFile);
+            var temp = path + "." + Guid.NewGuid().ToString("N");
+            try
+            {
+                using (var writer = new BinaryWriter(File.Create(temp), Encoding.UTF8))
+                {
+                    Write(writer, tree);
+                }
+                var length = new FileInfo(temp).Length;
+                File.Move(temp, path);
+
+                lock (_lock)
+                {
+                    _size += length;
+                    if (_size > _max_size) Evict();
+                }
+            }
+            catch (IOException e) // e.g. another run has just stored the same entry
+            {
+                Log.Debug("Parse cache: failed to store {0}: {1}", path, e.Message);
+                File.Delete(temp);
+            }
+        }
+
+        // Must be called with `_lock` held. Evict down to 3/4 of the limit, so that it doesn't run on every `Put`.
+        private void Evict()
+        {
+            var entries = Entries().OrderBy(f => f.LastWriteTimeUtc).ToList();
+            _size = entries.Sum(f => f.Length);
+            var count = 0;
+            foreach (var entry in entries)
+            {
+                if (_size <= _max_size / 4 * 3) break;
+                try
+                {
+                    var length = entry.Length;
+                    entry.Delete();
+                    _size -= length;
+                    count++;
+                }
+                catch (IOException)
+                {
+                }
+            }
+            Log.Debug("Parse cache: {0} entries evicted, {1} bytes in use.", count, _size);
+        }
+
+        // Tree format: the label table (count, then id and name of each), followed by the nodes in pre-order.
+        // Each node starts with its kind, label index and code; a node has its number of children,
+        // while a leaf has its position.
+
+        private static void Write(BinaryWriter writer, SyntaxNodeContext tree)
+        {
+            var labels = new Dictionary<(int, string), int>(); // error labels share ids with others
+            var table = new List<Label>();
+            foreach (var node in tree.root.GetSubtrees())
+            {
+                if (!labels.ContainsKey((node.label.id, node.label.name)))
+                {
+                    labels[(node.label.id, node.label.name)] = table.Count;
+                    table.Add(node.label);
+                }
+            }
+
+            writer.Write(table.Count);
+            foreach (var label in table)
+            {
+                writer.Write(label.id);
+                WriteString(writer, label.name);
+            }
+            WriteNode(writer, tree.root, labels);
+        }
+
+        private static void WriteNode(BinaryWriter writer, SyntaxNode node, Dictionary<(int, string), int> labels)
+        {
+            writer.Write((byte)node.kind);
+            writer.Write(labels[(node.label.id, node.label.name)]);
+            WriteString(writer, node.code);
+            if (node is Node)
+            {
+                var children = ((Node)node).children;
+                writer.Write(children.Count);
+                children.ForEach(c => WriteNode(writer, c, labels));
+            }
+            else
+            {
+                var pos = ((Leaf)node).pos;
+                writer.Write(pos.line);
+                writer.Write(pos.offset);
+            }
+        }
+
+        private static void WriteString(BinaryWriter writer, string s)
+        {
+            writer.Write(s != null);
+            if (s != null) writer.Write(s);
+        }
+
+        private static SyntaxNodeContext Read(BinaryReader reader)
+        {
+            var labels = new Label[reader.ReadInt32()];
+            for (int i = 0; i < labels.Length; i++)
+            {
+                var id = reader.ReadInt32();
+                labels[i] = new Label(id, ReadString(reader));
+            }
+
+            var context = new SyntaxNodeContext();
+            context.root = ReadNode(reader, context, 0, labels);
+            if (reader.BaseStream.Position != reader.BaseStream.Length)
+            {
+                throw new FormatException("Trailing bytes.");
+            }
+            return context;
+        }
+
+        private static SyntaxNode ReadNode(BinaryReader reader, SyntaxNodeContext context, int depth, Label[] labels)
+        {
+            var kind = (SyntaxKind)reader.ReadByte();
+            var label = labels[reader.ReadInt32()];
+            var code = ReadString(reader);
+            switch (kind)
+            {
+                case SyntaxKind.NODE:
+                    var id = context.AllocateId(); // before children: ids are in pre-order
+                    var count = reader.ReadInt32();
+                    var children = new List<SyntaxNode>(count);
+                    for (int i = 0; i < count; i++)
+                    {
+                        children.Add(ReadNode(reader, context, depth + 1, labels));
+                    }
+                    return new Node(context, depth, id, label, children, code);
+                case SyntaxKind.TOKEN:
+                    return new Token(context, depth, label, code, new Pos(reader.ReadInt32(), reader.ReadInt32()));
+                case SyntaxKind.ERROR:
+                    return new Error(context, depth, label, code, new Pos(reader.ReadInt32(), reader.ReadInt32()));
+                default:
+                    throw new FormatException($"Unknown node kind {kind}.");
+            }
+        }
+
+        private static string ReadString(BinaryReader reader) => reader.ReadBoolean() ? reader.ReadString() : null;
+    }
+}
@@ -1,14 +1,25 @@
 using System;
 using System.Diagnostics;
 using System.IO;
+using System.Collections.Generic;
 using System.Linq;
 using System.Text.RegularExpressions;
+using System.Threading.Tasks;
 using Microsoft.ProgramSynthesis.Utils;
+using Newtonsoft.Json;
 
 using Prem.Util;
 
 namespace Prem
 {
+    /// <summary>
+    /// A source file cannot be parsed, e.g. it is not a program of the language.
+    /// </summary>
+    public class ParseException : Exception
+    {
+        public ParseException(string message) : base(message) { }
+    }
+
     public class Parser
     {
         private static ColorLogger Log = ColorLogger.Instance;
@@ -19,10 +30,49 @@ namespace Prem
         // we have to store the absolute path of the utrans jar in an environment variable named "UTRANS_JAR".
         private string _utrans_jar_path;
 
-        public Parser(string language)
+        // The resident parser service, if enabled and alive; otherwise we spawn one process per file.
+        private Optional<HelperService> _service = Optional<HelperService>.Nothing;
+
+        public Parser(string language, bool useService = true, string compiler = "auto")
         {
             this.lang = language;
             LocateUtrans();
+
+            if (useService)
+            {
+                _service = HelperService.Start(_utrans_jar_path, _utrans_jar_path);
+                if (_service.HasValue)
+                {
+                    Log.Debug("Parser service started.");
+                }
+                else
+                {
+                    Log.Warning("Failed to start parser service, fall back to one process per file.");
+                }
+            }
+
+            if (compiler == "auto")
+            {
+                compiler = lang == "java" ? "javac" : "roslyn";
+            }
+            switch (compiler)
+            {
+                case "roslyn":
+                    _validator = new RoslynValidator();
+                    break;
+                case "csc":
+                    _validator = new CscValidator();
+                    break;
+                case "javac":
+                    // share the parser service if any, otherwise start a helper just for compiling
+                    _validator = _service.HasValue ? new JavacValidator(_service)
+                        : new JavacValidator(HelperService.Start(_utrans_jar_path, _utrans_jar_path), true);
+                    break;
+                default:
+                    Log.Error("Fatal: Unknown compiler: {0}", compiler);
+                    Environment.Exit(1);
+                    break;
+            }
         }
 
         public (Pos pos, string message) ParseError(string errorFile)
@@ -68,7 +118,53 @@ namespace Prem
             Log.Debug("Successfully located utrans: {0}", _utrans_jar_path);
         }
 
-        public string ParseProgramAsJSON(string sourceFile)
+        /// <summary>
+        /// Identifies the parser build, i.e. the size and modification time of the UTrans jar.
+        /// </summary>
+        public string Version
+        {
+            get
+            {
+                var jar = new FileInfo(_utrans_jar_path);
+                return $"{jar.Length}-{jar.LastWriteTimeUtc.Ticks}";
+            }
+        }
+
+        public SyntaxNodeContext ParseProgram(string sourceFile) =>
+            ParsePrograms(sourceFile.Single()).First();
+
+        /// <summary>
+        /// Parse many source files. With the parser service, all requests are sent at once
+        /// and their responses are collected in order.
+        /// </summary>
+        /// <param name="sourceFiles">Source files.</param>
+        /// <returns>Trees, in the same order as `sourceFiles`.</returns>
+        public List<SyntaxNodeContext> ParsePrograms(IEnumerable<string> sourceFiles)
+        {
+            var files = sourceFiles.ToList();
+            if (_service.HasValue && _service.Value.IsAlive)
+            {
+                var requests = files.Select(f => _service.Value.RequestAsync("parse", lang, f)).ToList();
+                return files.Zip(requests, (f, r) => WaitParsed(f, r)).ToList();
+            }
+
+            return files.Select(f => Subprocesses.Run(() => ParseProgramByProcess(f))).ToList();
+        }
+
+        private SyntaxNodeContext WaitParsed(string sourceFile, Task<string> request)
+        {
+            try
+            {
+                return SyntaxNodeContext.FromJSON(request.Result);
+            }
+            catch (AggregateException e)
+            {
+                Log.Warning("Parser service failed on {0}: {1}", sourceFile, e.InnerException.Message);
+                return Subprocesses.Run(() => ParseProgramByProcess(sourceFile));
+            }
+        }
+
+        private SyntaxNodeContext ParseProgramByProcess(string sourceFile)
         {
             using (var process = new Process())
             {
@@ -82,18 +178,18 @@ namespace Prem
 
                 if (!process.Start())
                 {
-                    Log.Error("Fatal: Failed to parse source file: {0}", sourceFile);
-                    Environment.Exit(1);
+                    throw new ParseException($"Failed to parse source file: {sourceFile}: cannot invoke java");
                 }
 
-                var content = process.StandardOutput.ReadToEnd();
-                if (!content.Any())
+                try
                 {
-                    Log.Error("Fatal: Empty source file: {0}", sourceFile);
-                    Environment.Exit(1);
+                    // Build the tree while UTrans is writing, rather than reading its whole output first.
+                    return SyntaxNodeContext.FromJSON(process.StandardOutput);
+                }
+                catch (JsonReaderException e)
+                {
+                    throw new ParseException($"Failed to parse source file: {sourceFile}: {e.Message}");
                 }
-
-                return content;
             }
         }
 
@@ -109,40 +205,83 @@ namespace Prem
             }
         }
 
-        // TODO: only C# is considered here
-        public Optional<CompileError> Compile(string sourceFile)
+        private Validator _validator;
+
+        public string CompilerName => _validator.Name;
+
+        private Optional<ProjectContext> _project = Optional<ProjectContext>.Nothing;
+
+        /// <summary>
+        /// Compile documents within a project (C# only): see `ProjectContext`.
+        /// </summary>
+        public void UseProject(ProjectContext project)
         {
-            using (var process = new Process())
+            _project = project.Some();
+        }
+
+        /// <summary>
+        /// Compile a source file.
+        /// </summary>
+        /// <param name="sourceFile">Source file.</param>
+        /// <param name="document">In project mode: the document it is a version of, if any.</param>
+        /// <returns>The first compile error, or nothing if it compiles.</returns>
+        public Optional<CompileError> Compile(string sourceFile, string document = null) =>
+            document != null && _project.HasValue ? CompileAll(sourceFile, document).TryFirst(_ => true)
+                : _validator.CheckFile(sourceFile);
+
+        /// <summary>
+        /// Compile a program given as source text, without writing it to a file (if the compiler supports).
+        /// </summary>
+        /// <param name="code">Source text.</param>
+        /// <returns>The first compile error, or nothing if it compiles.</returns>
+        public Optional<CompileError> CompileText(string code) => _validator.Check(code);
+
+        /// <summary>
+        /// Compile a source file, reporting all errors.
+        /// </summary>
+        /// <param name="sourceFile">Source file.</param>
+        /// <param name="document">In project mode: the document it is a version of, if any.</param>
+        /// <returns>All compile errors, empty if it compiles.</returns>
+        public List<CompileError> CompileAll(string sourceFile, string document = null)
+        {
+            if (document != null && _project.HasValue)
             {
-                process.StartInfo.FileName = "csc";
-                // NOTE: file name shouldn't have empty spaces.
-                process.StartInfo.Arguments = $"{sourceFile} -out:/tmp/tmp.exe";
-                process.StartInfo.UseShellExecute = false;
-                process.StartInfo.RedirectStandardOutput = true;
-                process.StartInfo.RedirectStandardError = true;
-                Log.Debug("CLI: {0} {1}", process.StartInfo.FileName, process.StartInfo.Arguments);
+                var code = File.ReadAllText(sourceFile);
+                return _project.Value.StartSession(code, document)(code);
+            }
+            return _validator.CheckAllFile(sourceFile);
+        }
 
-                if (!process.Start())
-                {
-                    Log.Error("Fatal: cannot invoke csc");
-                    Environment.Exit(1);
-                }
+        /// <summary>
+        /// Compile a program given as source text, reporting all errors.
+        /// </summary>
+        /// <param name="code">Source text.</param>
+        /// <returns>All compile errors, empty if it compiles.</returns>
+        public List<CompileError> CompileTextAll(string code) => _validator.CheckAll(code);
 
-                foreach (var line in process.StandardOutput.ReadToEnd().Split('\n'))
-                {
-                    if (line.Contains("): error"))
-                    {
-                        int start = line.IndexOf("(") + 1;
-                        int end = line.IndexOf("): error");
-                        var nums = line.Substring(start, end - start).Split(',');
-                        var pos = new Pos(int.Parse(nums[0]), int.Parse(nums[1]));
-
-                        var msg = line.Substring(end + 3);
-                        return new CompileError(pos, msg).Some();
-                    }
-                }
-                
-                return Optional<CompileError>.Nothing;
+        /// <summary>
+        /// The syntax-only check of the compiler, if any: see `Validator.SyntaxCheck`.
+        /// </summary>
+        public Optional<Func<string, List<CompileError>>> SyntaxCheck => _validator.SyntaxCheck;
+
+        /// <summary>
+        /// Start compiling programs derived from a base program, e.g. the candidates of a testcase;
+        /// the compiler may then recheck only what a candidate changes.
+        /// </summary>
+        /// <param name="baseCode">Source text of the base program.</param>
+        /// <param name="document">In project mode: the document it is a version of, if any.</param>
+        /// <returns>A compile function, as `CompileTextAll`.</returns>
+        public Func<string, List<CompileError>> CompileSession(string baseCode, string document = null) =>
+            document != null && _project.HasValue ? _project.Value.StartSession(baseCode, document)
+                : _validator.StartSession(baseCode);
+
+        public void Close()
+        {
+            _validator.Dispose();
+            if (_service.HasValue)
+            {
+                _service.Value.Close();
+                _service = Optional<HelperService>.Nothing;
             }
         }
 
@@ -1,6 +1,7 @@
 using System;
 using System.Collections.Generic;
 using System.IO;
+using System.Linq;
 using CommandLine;
 using Microsoft.ProgramSynthesis.Utils;
 
@@ -31,8 +32,75 @@ namespace Prem
             [Option('o', "output", Required = true, HelpText = "Output folder to write experiment results.")]
             public string OutputDir { get; set; }
 
+            [Option("no-parser-service", Default = false,
+                HelpText = "Spawn one UTrans process per file, instead of a resident parser service.")]
+            public bool NoParserService { get; set; }
+
+            [Option("no-parse-cache", Default = false, HelpText = "Disable the persistent cache of parsed trees.")]
+            public bool NoParseCache { get; set; }
+
+            [Option("parse-cache-dir", HelpText = "Folder of the parse cache (default: prem/parse-cache " +
+                "under the local application data folder).")]
+            public string ParseCacheDir { get; set; }
+
+            [Option("parse-cache-size", Default = 1024, HelpText = "Maximal size of the parse cache, in MB.")]
+            public int ParseCacheSize { get; set; }
+
+            [Option("no-validation-cache", Default = false,
+                HelpText = "Disable memoization of candidate validation results.")]
+            public bool NoValidationCache { get; set; }
+
+            [Option("no-syntax-check", Default = false,
+                HelpText = "Compile every candidate, rather than reject those with syntax errors first (c# only).")]
+            public bool NoSyntaxCheck { get; set; }
+
+            [Option("validation-cache-dir", HelpText = "Folder to persist validation results across runs " +
+                "(default: in memory only).")]
+            public string ValidationCacheDir { get; set; }
+
+            [Option("compiler", Default = "auto",
+                HelpText = "Compiler to validate candidates: roslyn (in-process) | csc | javac | auto " +
+                    "(roslyn for c#, javac for java).")]
+            public string Compiler { get; set; }
+
+            [Option("speculate", Default = 1,
+                HelpText = "In prediction: number of candidates of a testcase to validate concurrently.")]
+            public int Speculation { get; set; }
+
+            [Option("project", HelpText = "C# only: compile testcases within this project (a .csproj, " +
+                "or a folder of sources), with its other documents and references.")]
+            public string Project { get; set; }
+
+            [Option("multi-error", Default = false,
+                HelpText = "In prediction: repair independent compile errors of a testcase in the same step.")]
+            public bool MultiError { get; set; }
+
+            [Option("diff-compiled", Default = false, HelpText = "In benchmarking and prediction: apply every " +
+                "rule both compiled and interpreted, and report the outputs which differ.")]
+            public bool DiffCompiled { get; set; }
+
+            [Option('j', "jobs", Default = 1, HelpText = "Number of workers to run tasks concurrently.")]
+            public int Jobs { get; set; }
+
+            [Option("max-procs", Default = 0,
+                HelpText = "Maximal number of parser/compiler processes at a time (default: number of cores).")]
+            public int MaxProcesses { get; set; }
+
+            [Option("stream", Default = false, HelpText = "Stream task records to <task>.ndjson " +
+                "as each case finishes; <task>.json is still produced when the task finishes.")]
+            public bool Stream { get; set; }
+
+            [Option("resume", Default = false, HelpText = "Resume a killed run in the same output folder: " +
+                "skip cases already recorded, and restore synthesized rules. Implies --stream.")]
+            public bool Resume { get; set; }
+
             // tasks
 
+            // Only builds <task>.json from streamed records, e.g. of a crashed run, then exits.
+            [Option("finalize", HelpText = "Build aggregate JSON from streamed records (.ndjson files).")]
+            public IEnumerable<string> RecordsToFinalize { get; set; }
+
+
             // Folder structure
             // <root>/
             //      example_group_1/
@@ -78,13 +146,33 @@ namespace Prem
             [Option("int-in", HelpText = "In interactive mode: redirect stdin to this file.")]
             public string InputFile { get; set; }
 
-            [Option("load", HelpText = "Load rules from files.")]
+            [Option("serve", Default = 0, HelpText = "After other tasks, serve repair requests " +
+                "on this localhost port (HTTP, JSON), until Ctrl-C.")]
+            public int Port { get; set; }
+
+            [Option("load", HelpText = "Load rules from files (in either format).")]
             public IEnumerable<string> RuleLibsToLoad { get; set; }
+
+            // Loading then saving in another format converts rule libs, e.g.
+            // `--load RuleLib.xml --rule-format bin` converts to the binary format.
+            [Option("rule-format", Default = "xml", HelpText = "Format to save rules: xml | bin.")]
+            public string RuleFormat { get; set; }
         }
 
         static void Main(string[] args)
         {
-            CommandLine.Parser.Default.ParseArguments<Options>(args).WithParsed<Options>(Run);
+            try
+            {
+                CommandLine.Parser.Default.ParseArguments<Options>(args).WithParsed<Options>(Run);
+            }
+            catch (Exception e) when (e is ParseException ||
+                e is AggregateException && e.InnerException is ParseException)
+            {
+                // a testcase cannot be parsed: the dataset is broken
+                var inner = e is AggregateException ? e.InnerException : e;
+                Log.Error("Fatal: {0}", inner.Message);
+                Environment.Exit(1);
+            }
         }
 
         private static Optional<List<int>> ParseNumbers(string expr)
@@ -171,14 +259,25 @@ namespace Prem
 
         private static void Run(Options opts)
         {
+            if (opts.RecordsToFinalize.Any())
+            {
+                foreach (var file in opts.RecordsToFinalize) EnsureFileExist(file);
+                foreach (var file in opts.RecordsToFinalize) RecordWriter.Finalize(file);
+                return;
+            }
+
             // 0. File/directory check
             foreach (var lib in opts.RuleLibsToLoad)    EnsureFileExist(lib);
             foreach (var dir in opts.LearningSets)      EnsureDirExist(dir);
             foreach (var dir in opts.BenchmarkSuites)   EnsureDirExist(dir);
             foreach (var dir in opts.PredictionSets)    EnsureDirExist(dir);
             if (opts.InputFile != null)                 EnsureFileExist(opts.InputFile);
+            if (opts.Project != null && !File.Exists(opts.Project)) EnsureDirExist(opts.Project);
 
-            RequestOverwritten(opts.OutputDir);
+            if (!opts.Resume)
+            {
+                RequestOverwritten(opts.OutputDir);
+            }
 
             opts.Lang = opts.Lang.ToLower();
             if (opts.Lang != "c#" && opts.Lang != "java")
@@ -187,6 +286,19 @@ namespace Prem
                 Environment.Exit(1);
             }
 
+            if (opts.Project != null && opts.Lang != "c#")
+            {
+                Console.WriteLine("Project mode is only supported for c#.");
+                Environment.Exit(1);
+            }
+
+            opts.RuleFormat = opts.RuleFormat.ToLower();
+            if (opts.RuleFormat != "xml" && opts.RuleFormat != "bin")
+            {
+                Console.WriteLine("Rule format not suppported: {0}.", opts.RuleFormat);
+                Environment.Exit(1);
+            }
+
             // 1. Setup log and output dir
             Log.DisplayLevel = opts.LogDisplayLevel;
             Log.ShowColor = opts.LogShowColor;
@@ -196,7 +308,53 @@ namespace Prem
             var benchmarkSuitesFilter = ParseNumbers(opts.BenchmarkSuitesFilter);
 
             // 3. Run tasks
-            var runner = new TaskRunner(opts.Lang, opts.TopK, opts.OutputDir);
+            if (opts.MaxProcesses > 0)
+            {
+                Subprocesses.SetLimit(opts.MaxProcesses);
+            }
+            var runner = new TaskRunner(opts.Lang, opts.TopK, opts.OutputDir, !opts.NoParserService,
+                opts.Compiler.ToLower(), opts.Jobs);
+            if (!opts.NoParseCache)
+            {
+                var dir = opts.ParseCacheDir ?? Path.Combine(
+                    Environment.GetFolderPath(Environment.SpecialFolder.LocalApplicationData), "prem", "parse-cache");
+                runner.UseParseCache(dir, (long)opts.ParseCacheSize << 20);
+            }
+            if (opts.Project != null)
+            {
+                runner.UseProject(opts.Project);
+                if (opts.ValidationCacheDir != null) // results depend on the other documents, which may change
+                {
+                    Log.Warning("Validation results are not persisted in project mode.");
+                    opts.ValidationCacheDir = null;
+                }
+            }
+            if (!opts.NoValidationCache)
+            {
+                runner.UseValidationCache(opts.ValidationCacheDir == null ? Optional<string>.Nothing
+                    : opts.ValidationCacheDir.Some());
+            }
+            if (!opts.NoSyntaxCheck)
+            {
+                runner.UseSyntaxCheck();
+            }
+            runner.UseSpeculation(opts.Speculation);
+            if (opts.MultiError)
+            {
+                runner.UseMultiError();
+            }
+            if (opts.DiffCompiled)
+            {
+                runner.UseDiffCompiled();
+            }
+            if (opts.Resume)
+            {
+                runner.UseResume();
+            }
+            else if (opts.Stream)
+            {
+                runner.UseStreaming();
+            }
             // 3.1. Load rules
             runner.Load(opts.RuleLibsToLoad);
             // 3.2. Learn
@@ -205,8 +363,13 @@ namespace Prem
             runner.Bench(opts.BenchmarkSuites, benchmarkSuitesFilter);
             // 3.4. Predict
             runner.Predict(opts.PredictionSets, opts.Interactive, opts.InputFile, opts.Skip);
-            // 3.5. Finish
-            runner.Finish();
+            // 3.5. Serve
+            if (opts.Port > 0)
+            {
+                new RepairServer(runner, opts.Port, opts.Jobs).Run();
+            }
+            // 3.6. Finish
+            runner.Finish(opts.RuleFormat);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,158 @@
+using System;
+using System.Collections.Concurrent;
+using System.Collections.Generic;
+using System.IO;
+using System.Linq;
+using System.Xml.Linq;
+using Microsoft.CodeAnalysis.CSharp;
+
+using Prem.Util;
+
+namespace Prem
+{
+    // NOTE: `Microsoft.CodeAnalysis` is not imported as a whole, its `Optional<T>` clashes with PROSE's.
+    using MetadataReference = Microsoft.CodeAnalysis.MetadataReference;
+    using OutputKind = Microsoft.CodeAnalysis.OutputKind;
+    using SyntaxTree = Microsoft.CodeAnalysis.SyntaxTree;
+
+    using CompileError = Parser.CompileError;
+
+    /// <summary>
+    /// A C# project (a `.csproj`, or just a folder of sources), loaded once into a compilation which is
+    /// shared by all checks: candidates of a document are compiled against the other documents and the
+    /// project references, rather than as a lone file with default references.
+    ///
+    /// References are the running framework, the `PackageReference`s (found in the NuGet package folder)
+    /// and the `Reference`s with a `HintPath`. `ProjectReference`s are not followed.
+    /// Metadata references are cached by path, and shared by all projects.
+    /// </summary>
+    public class ProjectContext
+    {
+        private static ColorLogger Log = ColorLogger.Instance;
+
+        private static ConcurrentDictionary<string, MetadataReference> _reference_cache =
+            new ConcurrentDictionary<string, MetadataReference>();
+
+        // Preferred target frameworks of packages, as this runs on netcoreapp2.0.
+        private static string[] FRAMEWORKS = {
+            "netcoreapp2.0", "netstandard2.0", "netstandard1.6", "netstandard1.5", "netstandard1.4",
+            "netstandard1.3", "netstandard1.2", "netstandard1.1", "netstandard1.0"
+        };
+
+        public string root { get; }
+
+        private CSharpCompilation _compilation;
+
+        private Dictionary<string, SyntaxTree> _documents;
+
+        public int DocumentCount => _documents.Count;
+
+        /// <summary>
+        /// Load a project.
+        /// </summary>
+        /// <param name="path">A `.csproj` file, or a folder (with at most one `.csproj`).</param>
+        public ProjectContext(string path)
+        {
+            string projectFile = null;
+            if (File.Exists(path))
+            {
+                projectFile = Path.GetFullPath(path);
+                root = Path.GetDirectoryName(projectFile);
+            }
+            else
+            {
+                root = Path.GetFullPath(path);
+                var projectFiles = Directory.GetFiles(root, "*.csproj", SearchOption.TopDirectoryOnly);
+                if (projectFiles.Length > 1)
+                {
+                    throw new ArgumentException($"Multiple project files in {root}, please specify one.");
+                }
+                projectFile = projectFiles.FirstOrDefault();
+            }
+
+            var project = projectFile == null ? null : XElement.Load(projectFile);
+            var references = RoslynValidator.FrameworkReferences.ToList();
+            if (project != null)
+            {
+                references.AddRange(PackageReferences(project).Concat(HintPathReferences(project))
+                    .Select(p => _reference_cache.GetOrAdd(p, _ => MetadataReference.CreateFromFile(p))));
+            }
+
+            _documents = Directory.EnumerateFiles(root, "*.cs", SearchOption.AllDirectories)
+                .Where(f => !IsBuildOutput(f))
+                .AsParallel()
+                .Select(f => CSharpSyntaxTree.ParseText(File.ReadAllText(f), path: Path.GetFullPath(f)))
+                .ToDictionary(t => t.FilePath);
+
+            var outputType = project == null ? "" : Find(project, "OutputType").FirstOrDefault()?.Value ?? "";
+            var options = new CSharpCompilationOptions(outputType.ToLower().Contains("exe")
+                ? OutputKind.ConsoleApplication : OutputKind.DynamicallyLinkedLibrary);
+            var name = projectFile == null ? Path.GetFileName(root) : Path.GetFileNameWithoutExtension(projectFile);
+            _compilation = CSharpCompilation.Create(name, _documents.Values, references, options);
+
+            // Keep it warm: bind all declarations now, rather than on the first check.
+            var errors = _compilation.GetDeclarationDiagnostics().Count(d => d.Severity ==
+                Microsoft.CodeAnalysis.DiagnosticSeverity.Error);
+            Log.Info("Project {0} loaded: {1} documents, {2} references, {3} declaration errors.",
+                projectFile ?? root, _documents.Count, references.Count, errors);
+        }
+
+        // Old style project files have the MSBuild namespace, SDK style ones have none.
+        private static IEnumerable<XElement> Find(XElement project, string name) =>
+            project.Descendants().Where(e => e.Name.LocalName == name);
+
+        private bool IsBuildOutput(string file)
+        {
+            var relative = file.Substring(root.Length).Split(Path.DirectorySeparatorChar, Path.AltDirectorySeparatorChar);
+            return relative.Contains("bin") || relative.Contains("obj");
+        }
+
+        private static IEnumerable<string> PackageReferences(XElement project)
+        {
+            var packages = Environment.GetEnvironmentVariable("NUGET_PACKAGES") ?? Path.Combine(
+                Environment.GetFolderPath(Environment.SpecialFolder.UserProfile), ".nuget", "packages");
+
+            foreach (var reference in Find(project, "PackageReference"))
+            {
+                var id = (string)reference.Attribute("Include");
+                var version = (string)reference.Attribute("Version") ?? Find(reference, "Version").FirstOrDefault()?.Value;
+                if (id == null || version == null) continue;
+
+                var lib = Path.Combine(packages, id.ToLower(), version, "lib");
+                if (!Directory.Exists(lib))
+                {
+                    Log.Warning("Package {0} {1} not found in {2}, please restore the project.", id, version, packages);
+                    continue;
+                }
+
+                var frameworks = Directory.GetDirectories(lib).Select(Path.GetFileName).ToList();
+                var framework = FRAMEWORKS.FirstOrDefault(frameworks.Contains) ?? frameworks.Sorted().LastOrDefault();
+                if (framework == null) continue;
+
+                foreach (var dll in Directory.GetFiles(Path.Combine(lib, framework), "*.dll"))
+                {
+                    yield return dll;
+                }
+            }
+        }
+
+        private IEnumerable<string> HintPathReferences(XElement project) =>
+            Find(project, "Reference").Select(r => Find(r, "HintPath").FirstOrDefault()?.Value).Where(p => p != null)
+                .Select(p => Path.GetFullPath(Path.Combine(root, p.Replace('\\', Path.DirectorySeparatorChar))))
+                .Where(File.Exists);
+
+        /// <summary>
+        /// Start checking candidates of a document, see `Parser.CompileSession`.
+        /// </summary>
+        /// <param name="baseCode">Source text of the document.</param>
+        /// <param name="document">Path of the document (relative to the project root, or absolute);
+        /// a file out of the project is checked as an extra document.</param>
+        public Func<string, List<CompileError>> StartSession(string baseCode, string document)
+        {
+            var path = Path.GetFullPath(Path.Combine(root, document));
+            SyntaxTree tree;
+            var others = _documents.TryGetValue(path, out tree) ? _compilation.RemoveSyntaxTrees(tree) : _compilation;
+            return new RoslynSession(baseCode, others, path).CheckAll;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+using System;
+using System.Collections.Generic;
+using System.IO;
+using System.Linq;
+using Newtonsoft.Json;
+using Newtonsoft.Json.Linq;
+
+using Prem.Util;
+
+namespace Prem
+{
+    /// <summary>
+    /// Writes the records of a task (learn/bench/predict) into `<name>.json`, as an object consisting of
+    /// the task info and an array of records under `key`.
+    ///
+    /// In streaming mode, records are not kept in memory, but written to `<name>.ndjson` as soon as they
+    /// are added, one JSON object per line:
+    ///   {"header": <task info>, "key": <key>}
+    ///   {"index": <index>, "record": <record>}  -- once per record, in the order they are added
+    ///   {"footer": <extra info>}                 -- once the task finishes
+    /// Each line is flushed right away, thus a crashed run keeps all records finished so far.
+    /// `Finalize` then builds the usual `<name>.json` from it, with records sorted by index.
+    ///
+    /// When resuming, records are appended to an existing `<name>.ndjson`, and `Finished` tells which
+    /// cases were recorded by the previous runs.
+    /// </summary>
+    public class RecordWriter : IDisposable
+    {
+        private static ColorLogger Log = ColorLogger.Instance;
+
+        private string _json_path;
+
+        private JObject _info;
+
+        private string _key;
+
+        private SortedDictionary<int, JObject> _records;
+
+        private StreamWriter _stream;
+
+        // Records may be added by several workers.
+        private readonly object _lock = new object();
+
+        /// <summary>
+        /// Indices of the records written by previous runs, if resumed.
+        /// </summary>
+        public ISet<int> Finished { get; } = new HashSet<int>();
+
+        /// <summary>
+        /// Start writing records.
+        /// </summary>
+        /// <param name="dir">Output folder.</param>
+        /// <param name="name">Output name, e.g. "predict".</param>
+        /// <param name="info">Task info.</param>
+        /// <param name="key">Key of the records array in the aggregate JSON.</param>
+        /// <param name="stream">Enable streaming mode.</param>
+        /// <param name="resume">In streaming mode: continue the records of previous runs, if any.</param>
+        public RecordWriter(string dir, string name, JObject info, string key, bool stream, bool resume = false)
+        {
+            this._json_path = Path.Combine(dir, name + ".json");
+            this._info = info;
+            this._key = key;
+
+            if (!stream)
+            {
+                _records = new SortedDictionary<int, JObject>();
+                return;
+            }
+
+            var ndjsonPath = Path.Combine(dir, name + ".ndjson");
+            var previous = resume && File.Exists(ndjsonPath) ? Read(ndjsonPath) : default;
+            if (previous.header != null)
+            {
+                previous.records.ForEach(r => Finished.Add(r.index));
+
+                // A crashed run may leave a truncated last line: end it, so that it stays alone.
+                bool truncated;
+                using (var file = File.OpenRead(ndjsonPath))
+                {
+                    file.Seek(-1, SeekOrigin.End);
+                    truncated = file.ReadByte() != '\n';
+                }
+                _stream = new StreamWriter(ndjsonPath, true);
+                if (truncated) _stream.WriteLine();
+                Log.Info("Resuming records in {0}: {1} recorded.", ndjsonPath, Finished.Count);
+            }
+            else
+            {
+                _stream = new StreamWriter(ndjsonPath, false);
+                WriteLine(new JObject { { "header", info }, { "key", key } });
+                Log.Info("Streaming records to {0}.", ndjsonPath);
+            }
+        }
+
+        private void WriteLine(JObject obj)
+        {
+            _stream.WriteLine(obj.ToString(Formatting.None));
+            _stream.Flush();
+        }
+
+        /// <summary>
+        /// Add a record.
+        /// </summary>
+        /// <param name="index">Index of the record in the input order, counting from 0.</param>
+        /// <param name="record">The record.</param>
+        public void Add(int index, JObject record)
+        {
+            lock (_lock)
+            {
+                if (_stream != null)
+                {
+                    WriteLine(new JObject { { "index", index }, { "record", record } });
+                }
+                else
+                {
+                    _records[index] = record;
+                }
+            }
+        }
+
+        /// <summary>
+        /// Finish: write the aggregate JSON.
+        /// </summary>
+        /// <param name="extra">Extra info to add to the aggregate JSON, if any.</param>
+        public void Finish(JObject extra = null)
+        {
+            lock (_lock)
+            {
+                if (_stream != null)
+                {
+                    if (extra != null) WriteLine(new JObject { { "footer", extra } });
+                    var ndjsonPath = ((FileStream)_stream.BaseStream).Name;
+                    _stream.Dispose();
+                    _stream = null;
+                    Finalize(ndjsonPath);
+                    return;
+                }
+
+                _info.Add(_key, new JArray(_records.Values));
+                if (extra != null) _info.Merge(extra);
+                File.WriteAllText(_json_path, _info.ToString());
+                Log.Info("Record saved to {0}.", _json_path);
+            }
+        }
+
+        public void Dispose()
+        {
+            lock (_lock)
+            {
+                _stream?.Dispose();
+                _stream = null;
+            }
+        }
+
+        /// <summary>
+        /// Build the aggregate JSON from a streamed `<name>.ndjson`, saved as `<name>.json` beside it.
+        /// A partial file (e.g. of a crashed run) is fine: it just lacks some records and the footer.
+        /// </summary>
+        /// <param name="ndjsonPath">The streamed file.</param>
+        /// <returns>Path of the aggregate JSON.</returns>
+        public static string Finalize(string ndjsonPath)
+        {
+            var (info, key, records, footer) = Read(ndjsonPath);
+            if (info == null)
+            {
+                throw new FormatException($"{ndjsonPath}: header not found.");
+            }
+
+            info.Add(key, new JArray(records.OrderBy(r => r.index).Select(r => r.record)));
+            if (footer != null) info.Merge(footer);
+
+            var jsonPath = Path.ChangeExtension(ndjsonPath, ".json");
+            File.WriteAllText(jsonPath, info.ToString());
+            Log.Info("Record saved to {0}.", jsonPath);
+            return jsonPath;
+        }
+
+        // Records are read in the order they were written; the last footer wins.
+        private static (JObject header, string key, List<(int index, JToken record)> records, JObject footer)
+            Read(string ndjsonPath)
+        {
+            JObject info = null;
+            string key = null;
+            var records = new List<(int index, JToken record)>();
+            JObject footer = null;
+
+            foreach (var line in File.ReadLines(ndjsonPath))
+            {
+                if (line.Trim() == "") continue;
+
+                JObject obj;
+                try
+                {
+                    obj = JObject.Parse(line);
+                }
+                catch (JsonReaderException)
+                {
+                    Log.Warning("Ignore truncated line in {0}.", ndjsonPath); // the last line of a crashed run
+                    continue;
+                }
+
+                if (obj["header"] != null)
+                {
+                    info = (JObject)obj["header"];
+                    key = (string)obj["key"];
+                }
+                else if (obj["record"] != null)
+                {
+                    records.Add(((int)obj["index"], obj["record"]));
+                }
+                else if (obj["footer"] != null)
+                {
+                    footer = (JObject)obj["footer"];
+                }
+            }
+
+            return (info, key, records, footer);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+using System;
+using System.IO;
+using System.Net;
+using System.Text;
+using System.Threading;
+using System.Threading.Tasks;
+using Microsoft.ProgramSynthesis.Utils;
+using Newtonsoft.Json;
+using Newtonsoft.Json.Linq;
+
+using Prem.Util;
+
+namespace Prem
+{
+    /// <summary>
+    /// Serves repair requests over localhost HTTP, with the rule lib, parser and compilers kept warm
+    /// in one resident `TaskRunner`.
+    ///
+    /// Protocol (JSON bodies):
+    ///   POST /repair  {"source": <text>, "line": <int>, "column": <int>, "message": <text>, "path": <text>}
+    ///                 The error position and message are optional: if absent, the source is compiled to find them.
+    ///                 The path is optional: in project mode, it tells which project document the source is.
+    ///                 Responds {"solved?": <bool>, "rules applied": [...], "source": <repaired text, if solved>,
+    ///                 "time (ms)": <int>}.
+    ///   GET  /status  Responds {"rule sets": <int>, "requests": <int>, "pending": <int>}.
+    /// Invalid requests are answered with status 400 and {"error": <message>}.
+    ///
+    /// Requests are served concurrently, by at most `jobs` at a time.
+    /// </summary>
+    public class RepairServer
+    {
+        private static ColorLogger Log = ColorLogger.Instance;
+
+        private TaskRunner _runner;
+
+        private HttpListener _listener = new HttpListener();
+
+        private SemaphoreSlim _slots;
+
+        private int _requests;
+
+        private int _pending;
+
+        public RepairServer(TaskRunner runner, int port, int jobs)
+        {
+            this._runner = runner;
+            this._slots = new SemaphoreSlim(Math.Max(1, jobs));
+            _listener.Prefixes.Add($"http://localhost:{port}/");
+        }
+
+        /// <summary>
+        /// Serve until interrupted (Ctrl-C).
+        /// </summary>
+        public void Run()
+        {
+            _listener.Start();
+            Console.CancelKeyPress += (sender, e) => {
+                e.Cancel = true; // stop gracefully, so that the runner can finish
+                _listener.Stop();
+            };
+            Log.Info("Serving on {0} with {1} rule sets, press Ctrl-C to stop.",
+                String.Join(", ", _listener.Prefixes), _runner.RuleSetCount);
+
+            while (true)
+            {
+                HttpListenerContext context;
+                try
+                {
+                    context = _listener.GetContext();
+                }
+                catch (Exception e) when (e is HttpListenerException || e is ObjectDisposedException
+                    || e is InvalidOperationException)
+                {
+                    break; // stopped
+                }
+
+                Interlocked.Increment(ref _pending);
+                Task.Run(() => Serve(context));
+            }
+
+            // wait for the requests in progress
+            while (Volatile.Read(ref _pending) > 0)
+            {
+                Thread.Sleep(100);
+            }
+            Log.Info("Server stopped after {0} requests.", _requests);
+        }
+
+        private void Serve(HttpListenerContext context)
+        {
+            var request = context.Request;
+            var watch = System.Diagnostics.Stopwatch.StartNew();
+            try
+            {
+                if (request.HttpMethod == "GET" && request.Url.AbsolutePath == "/status")
+                {
+                    var status = new JObject();
+                    status.Add("rule sets", _runner.RuleSetCount);
+                    status.Add("requests", _requests);
+                    status.Add("pending", _pending - 1);
+                    Respond(context, 200, status);
+                }
+                else if (request.HttpMethod == "POST" && request.Url.AbsolutePath == "/repair")
+                {
+                    var id = Interlocked.Increment(ref _requests);
+                    var (source, error, path) = ReadRepairRequest(request);
+
+                    _slots.Wait();
+                    JObject result;
+                    try
+                    {
+                        Log.Info("Repairing request #{0}", id);
+                        result = _runner.Repair(source, error, path);
+                    }
+                    finally
+                    {
+                        _slots.Release();
+                    }
+                    result.Add("time (ms)", watch.ElapsedMilliseconds);
+                    Respond(context, 200, result);
+                }
+                else
+                {
+                    Respond(context, 404, Error($"Unknown request: {request.HttpMethod} {request.Url.AbsolutePath}"));
+                }
+            }
+            catch (Exception e) when (e is JsonException || e is FormatException || e is ArgumentException
+                || e is ParseException)
+            {
+                Respond(context, 400, Error(e.Message));
+            }
+            catch (Exception e)
+            {
+                Log.Error("Failed to serve {0}: {1}: {2}", request.Url, e.GetType(), e.Message);
+                Respond(context, 500, Error(e.Message));
+            }
+            finally
+            {
+                Interlocked.Decrement(ref _pending);
+            }
+        }
+
+        private static (string source, Optional<Parser.CompileError> error, string path) ReadRepairRequest(
+            HttpListenerRequest request)
+        {
+            JObject body;
+            using (var reader = new StreamReader(request.InputStream, request.ContentEncoding ?? Encoding.UTF8))
+            {
+                body = JObject.Parse(reader.ReadToEnd());
+            }
+
+            var source = (string)body["source"];
+            if (source == null)
+            {
+                throw new ArgumentException("Missing field: source.");
+            }
+            var path = (string)body["path"];
+
+            if (body["line"] == null && body["column"] == null && body["message"] == null)
+            {
+                return (source, Optional<Parser.CompileError>.Nothing, path);
+            }
+            if (body["line"] == null || body["column"] == null || body["message"] == null)
+            {
+                throw new ArgumentException("Fields line, column and message must be given together.");
+            }
+
+            var pos = new Pos((int)body["line"], (int)body["column"]);
+            return (source, new Parser.CompileError(pos, (string)body["message"]).Some(), path);
+        }
+
+        private static JObject Error(string message) => new JObject { { "error", message } };
+
+        private static void Respond(HttpListenerContext context, int status, JObject body)
+        {
+            try
+            {
+                var bytes = Encoding.UTF8.GetBytes(body.ToString());
+                context.Response.StatusCode = status;
+                context.Response.ContentType = "application/json; charset=utf-8";
+                context.Response.ContentLength64 = bytes.Length;
+                context.Response.OutputStream.Write(bytes, 0, bytes.Length);
+                context.Response.Close();
+            }
+            catch (Exception e) when (e is HttpListenerException || e is IOException)
+            {
+                Log.Debug("Failed to respond: {0}", e.Message); // e.g. the client has gone
+            }
+        }
+    }
+}
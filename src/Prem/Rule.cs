@@ -2,6 +2,8 @@ using System;
 using System.Collections.Generic;
 using System.Linq;
 using System.Text;
+using System.Threading;
+using System.Threading.Tasks;
 using Microsoft.ProgramSynthesis.Utils;
 
 using Prem.Transformer;
@@ -14,6 +16,7 @@ using System.Xml.Linq;
 namespace Prem
 {
     using Env = Dictionary<EnvKey, string>;
+    using TInput = Prem.Transformer.TreeLang.TInput;
 
     public abstract class Matcher : ASTSerialization.IObjSerializable
     {
@@ -86,6 +89,12 @@ namespace Prem
             this.quotePair = quotePair;
         }
 
+        public Var(EnvKey var, (string, string) quotePair)
+        {
+            this.var = var;
+            this.quotePair = quotePair;
+        }
+
         public static (string left, string right) NO_QUOTE = ("", "");
 
         public static List<(string left, string right)> QUOTE_PAIRS =
@@ -277,9 +286,16 @@ namespace Prem
             this.matchers.ForEach(m => m.LabelVar(counter));
         }
 
-        public bool Match(string message, Env env)
+        public bool Match(string message, Env env) => Match(Tokenize(message), env);
+
+        /// <summary>
+        /// Match against an already tokenized message.
+        /// </summary>
+        /// <param name="words">Message words, as returned by `Tokenize`.</param>
+        /// <param name="env">Environment to store the values of variables.</param>
+        /// <returns>Matched or not.</returns>
+        public bool Match(List<string> words, Env env)
         {
-            var words = Tokenize(message);
             if (matchers.Count != words.Count) return false;
 
             for (int i = 0; i < matchers.Count; i++)
@@ -425,6 +441,12 @@ namespace Prem
 
     public class RuleLib : ASTSerialization.IObjSerializable
     {
+        private static ColorLogger Log = ColorLogger.Instance;
+
+        /// <summary>
+        /// Rule sets, in the order they are tried.
+        /// Only append via `add`, or the index gets out of sync.
+        /// </summary>
         public List<RuleSet> ruleSets{get;}
         public RuleLib()
         {
@@ -433,6 +455,7 @@ namespace Prem
         public RuleLib(List<RuleSet> ruleSets)
         {
             this.ruleSets = ruleSets;
+            BuildIndex();
         }
         public int Size => ruleSets.Count;
 
@@ -441,12 +464,115 @@ namespace Prem
         public void add(RuleSet ruleset)
         {
             if (!ruleset.IsEmpty)
+            {
                 this.ruleSets.Add(ruleset);
+                AddToIndex(ruleSets.Count - 1);
+            }
+        }
+
+        // Most rule sets cannot match a given message at all, as their patterns have a different
+        // number of words, or different leading words, e.g. "error" "CS0103:".
+        // Thus we index the rule sets by a key (pattern length, literal of the 1st word,
+        // literal of the 2nd word), where a literal is null if the word is a variable (or absent).
+        // Each value holds indices of rule sets in `ruleSets`, ascending.
+        private Dictionary<(int length, string first, string second), List<int>> _index =
+            new Dictionary<(int length, string first, string second), List<int>>();
+
+        private static string LiteralAt(ErrPattern pattern, int i) =>
+            i < pattern.Length && pattern.matchers[i] is Const ? ((Const)pattern.matchers[i]).literal : null;
+
+        private void BuildIndex()
+        {
+            _index.Clear();
+            for (int i = 0; i < ruleSets.Count; i++)
+            {
+                AddToIndex(i);
+            }
+        }
+
+        private void AddToIndex(int i)
+        {
+            var pattern = ruleSets[i].errPattern;
+            var key = (pattern.Length, LiteralAt(pattern, 0), LiteralAt(pattern, 1));
+            List<int> bucket;
+            if (!_index.TryGetValue(key, out bucket))
+            {
+                bucket = new List<int>();
+                _index[key] = bucket;
+            }
+            bucket.Add(i);
+        }
+
+        /// <summary>
+        /// Find the indices of rule sets whose patterns may match the message `words`, in ascending order.
+        /// Every other rule set is known to not match.
+        /// </summary>
+        private List<int> Candidates(List<string> words)
+        {
+            var first = words.Count > 0 ? words[0] : null;
+            var second = words.Count > 1 ? words[1] : null;
+            var keys = new HashSet<(int, string, string)> {
+                (words.Count, first, second),
+                (words.Count, first, null),
+                (words.Count, null, second),
+                (words.Count, null, null)
+            };
+
+            var candidates = new List<int>();
+            foreach (var key in keys)
+            {
+                List<int> bucket;
+                if (_index.TryGetValue(key, out bucket))
+                {
+                    candidates.AddRange(bucket);
+                }
+            }
+            candidates.Sort(); // keep the original order of trying rule sets
+            return candidates;
         }
 
         public void Extend(RuleLib another) => another.ruleSets.ForEach(add);
 
-        public abstract class ApplyResult<T> {}
+        /// <summary>
+        /// Differential check of compiled programs: in `Apply`, every rule is applied both compiled and
+        /// interpreted (see `TProgram.Apply`), outputs that differ are logged and counted,
+        /// and the interpreted one is taken.
+        /// </summary>
+        public bool diffCompiled { get; set; }
+
+        private int _diff_applications;
+
+        private int _diff_mismatches;
+
+        public int diffApplications => _diff_applications;
+
+        public int diffMismatches => _diff_mismatches;
+
+        private Optional<SyntaxNode> ApplyBoth(TProgram transformer, TInput input, string ruleSetName)
+        {
+            var compiled = transformer.Apply(input);
+            var interpreted = transformer.Interpret(input);
+            Interlocked.Increment(ref _diff_applications);
+
+            var same = compiled.HasValue
+                ? interpreted.HasValue && compiled.Value.IdenticalTo(interpreted.Value)
+                : !interpreted.HasValue;
+            if (!same)
+            {
+                Interlocked.Increment(ref _diff_mismatches);
+                Log.Warning("Compiled program of {0} differs from interpreted on {1}: {2}",
+                    ruleSetName, input, transformer);
+            }
+            return interpreted;
+        }
+
+        public abstract class ApplyResult<T>
+        {
+            /// <summary>
+            /// Number of outputs skipped without validation, as they are identical to some output tried before.
+            /// </summary>
+            public int skippedDuplicates { get; internal set; }
+        }
         
         public class ApplySuccess<T> : ApplyResult<T>
         {
@@ -454,10 +580,16 @@ namespace Prem
             
             public string ruleUsed { get; }
 
-            public ApplySuccess(int k, string rule)
+            /// <summary>
+            /// The accepted output.
+            /// </summary>
+            public SyntaxNode candidate { get; }
+
+            public ApplySuccess(int k, string rule, SyntaxNode candidate)
             {
                 this.applyTry = k;
                 this.ruleUsed = rule;
+                this.candidate = candidate;
             }
         }
 
@@ -467,63 +599,215 @@ namespace Prem
 
             public string ruleUsed { get; }
 
-            public ApplyFailure(T error, string rule)
+            /// <summary>
+            /// The last rejected output, i.e. the one causing `error`.
+            /// </summary>
+            public SyntaxNode candidate { get; }
+
+            public ApplyFailure(T error, string rule, SyntaxNode candidate)
             {
                 this.error = error;
                 this.ruleUsed = rule;
+                this.candidate = candidate;
             }
         }
 
         public class Unapplicable<T> : ApplyResult<T> {}
 
-        public ApplyResult<T> Apply<T>(Input testcase, Func<SyntaxNode, Optional<T>> validator)
+        /// <summary>
+        /// Apply rule sets to the `testcase` in order, until the `validator` accepts some output.
+        /// This only reads the rule lib, thus it is safe to call from several threads at a time,
+        /// as long as they work on different testcases and no rule set is added meanwhile.
+        ///
+        /// With `speculation` > 1, up to `speculation` outputs are validated concurrently (see `ApplySpeculatively`),
+        /// thus `validator` must then be thread-safe.
+        /// In either mode, the result is the same as trying rules one by one.
+        ///
+        /// Different rules often produce the same output: an output identical to one tried before is skipped
+        /// without calling `validator`, as it would be rejected again (see `SeenTrees`).
+        /// </summary>
+        /// <param name="testcase">The input.</param>
+        /// <param name="validator">Returns an error if the output is rejected, or nothing if accepted.</param>
+        /// <param name="speculation">Maximal number of outputs being validated at a time.</param>
+        /// <returns>The application result.</returns>
+        public ApplyResult<T> Apply<T>(Input testcase, Func<SyntaxNode, Optional<T>> validator, int speculation = 1)
+        {
+            if (speculation > 1) return ApplySpeculatively(testcase, validator, speculation);
+
+            T lastErr = default(T);
+            string lastRule = "";
+            SyntaxNode lastCandidate = null;
+            bool hasErr = false;
+            var seen = new SeenTrees();
+
+            foreach (var attempt in Attempts(testcase, seen))
+            {
+                var err = validator(attempt.candidate);
+                if (err.HasValue)
+                {
+                    hasErr = true;
+                    lastErr = err.Value;
+                    lastRule = attempt.ruleUsed;
+                    lastCandidate = attempt.candidate;
+                    // continue attempting
+                }
+                else
+                {
+                    return seen.Report(new ApplySuccess<T>(attempt.applyTry, attempt.ruleUsed, attempt.candidate));
+                }
+            }
+
+            if (hasErr) return seen.Report(new ApplyFailure<T>(lastErr, lastRule, lastCandidate));
+            return seen.Report(new Unapplicable<T>());
+        }
+
+        /// <summary>
+        /// Speculative `Apply`: rules are applied ahead (on this thread, as applying is cheap compared to validating),
+        /// and a window of the next `window` outputs is validated concurrently.
+        /// Results are consumed in the sequential order, so the first accepted output in that order wins,
+        /// even if a later one is accepted earlier. Once the result is known, validations not yet started
+        /// are skipped; those already running cannot be interrupted, and their results are dropped.
+        /// </summary>
+        private ApplyResult<T> ApplySpeculatively<T>(Input testcase, Func<SyntaxNode, Optional<T>> validator,
+            int window)
         {
-            int applyTry = 0;
             T lastErr = default(T);
             string lastRule = "";
+            SyntaxNode lastCandidate = null;
             bool hasErr = false;
+            var seen = new SeenTrees();
+
+            using (var cancellation = new CancellationTokenSource())
+            {
+                var token = cancellation.Token;
+                // `skipped`: duplicates skipped so far, as outputs are applied ahead of the one being consumed
+                var pending = new Queue<((int applyTry, string ruleUsed, SyntaxNode candidate) attempt,
+                    int skipped, Task<Optional<T>> validation)>();
+                var attempts = Attempts(testcase, seen).GetEnumerator();
+
+                void Fill()
+                {
+                    while (pending.Count < window && attempts.MoveNext())
+                    {
+                        var attempt = attempts.Current;
+                        pending.Enqueue((attempt, seen.duplicates,
+                            Task.Run(() => validator(attempt.candidate), token)));
+                    }
+                }
+
+                try
+                {
+                    Fill();
+                    while (pending.Any())
+                    {
+                        var (attempt, skipped, validation) = pending.Dequeue();
+                        var err = validation.GetAwaiter().GetResult(); // rethrows what `validator` throws
+                        if (err.HasValue)
+                        {
+                            hasErr = true;
+                            lastErr = err.Value;
+                            lastRule = attempt.ruleUsed;
+                            lastCandidate = attempt.candidate;
+                            Fill(); // continue attempting
+                        }
+                        else
+                        {
+                            return seen.Report(
+                                new ApplySuccess<T>(attempt.applyTry, attempt.ruleUsed, attempt.candidate), skipped);
+                        }
+                    }
+                }
+                finally
+                {
+                    cancellation.Cancel();
+                }
+            }
+
+            if (hasErr) return seen.Report(new ApplyFailure<T>(lastErr, lastRule, lastCandidate));
+            return seen.Report(new Unapplicable<T>());
+        }
 
-            foreach (var ruleSet in ruleSets) // try each rule set
+        /// <summary>
+        /// Lazily apply the rules in order: each rule set whose pattern matches the error message,
+        /// and then each of its rules. Only outputs are yielded, but `applyTry` counts every rule tried,
+        /// including those which are not applicable. Outputs already in `seen` are counted there, but not yielded.
+        /// </summary>
+        private IEnumerable<(int applyTry, string ruleUsed, SyntaxNode candidate)> Attempts(Input testcase,
+            SeenTrees seen)
+        {
+            int applyTry = 0;
+            var words = ErrPattern.Tokenize(testcase.errMessage);
+            foreach (var i in Candidates(words)) // try each rule set that may match
             {
+                var ruleSet = ruleSets[i];
                 var env = new Env();
-                if (ruleSet.errPattern.Match(testcase.errMessage, env)) // the rule set is appliable
+                if (ruleSet.errPattern.Match(words, env)) // the rule set is appliable
                 {
                     var input = testcase.AsTInput(env);
                     foreach (var transformer in ruleSet.transformers) // try each rule in order
                     {
                         applyTry++;
-                        var r = transformer.Apply(input);
-                        if (r.HasValue) // rule is applicable without exceptions
+                        var r = diffCompiled ? ApplyBoth(transformer, input, ruleSet.Name) : transformer.Apply(input);
+                        if (r.HasValue && seen.Add(r.Value)) // rule is applicable without exceptions, and new
                         {
-                            var err = validator(r.Value);
-                            if (err.HasValue)
-                            {
-                                hasErr = true;
-                                lastErr = err.Value;
-                                lastRule = ruleSet.Name;
-                                // continue attempting
-                            }
-                            else
-                            {
-                                return new ApplySuccess<T>(applyTry, ruleSet.Name);
-                            }
+                            yield return (applyTry, ruleSet.Name, r.Value);
                         }
                         // rule is not applicable
                     }
                 }
                 // else: the entire rule set is not applicable
             }
+        }
+
+        /// <summary>
+        /// Outputs tried for one input. An output is fingerprinted by its structural `treeHash`,
+        /// and a hash hit is confirmed by `IdenticalTo`, thus different trees are never taken as duplicates.
+        /// </summary>
+        private class SeenTrees
+        {
+            private Dictionary<int, List<SyntaxNode>> _trees = new Dictionary<int, List<SyntaxNode>>();
+
+            public int duplicates { get; private set; }
+
+            /// <summary>
+            /// Add an output.
+            /// </summary>
+            /// <returns>True if it is new, false if it is a duplicate.</returns>
+            public bool Add(SyntaxNode tree)
+            {
+                List<SyntaxNode> bucket;
+                if (!_trees.TryGetValue(tree.treeHash, out bucket))
+                {
+                    bucket = new List<SyntaxNode>();
+                    _trees[tree.treeHash] = bucket;
+                }
+                else if (bucket.Any(t => t.IdenticalTo(tree)))
+                {
+                    duplicates++;
+                    return false;
+                }
+
+                bucket.Add(tree);
+                return true;
+            }
 
-            if (hasErr) return new ApplyFailure<T>(lastErr, lastRule);
-            return new Unapplicable<T>();
+            public ApplyResult<T> Report<T>(ApplyResult<T> result, int? skipped = null)
+            {
+                result.skippedDuplicates = skipped ?? duplicates;
+                return result;
+            }
         }
 
         public XElement DumpXml() => serialize();
         public static RuleLib FromXml(XElement xe) => new RuleLib(xe);
 
+        public void DumpBinary(string file) => BinaryRuleLib.Save(this, file);
+        public static RuleLib FromBinary(string file) => BinaryRuleLib.Load(file);
+
         public RuleLib(XElement xe)
         {
             ruleSets = ASTSerialization.Serialization.makeObject(xe.Element("Attr-ruleSets")) as List<RuleSet>;
+            BuildIndex();
         }
 
         public XElement serialize()
@@ -0,0 +1,39 @@
+using System;
+using System.Threading;
+
+namespace Prem
+{
+    /// <summary>
+    /// Limits the number of child processes (UTrans, csc, javac) running at a time,
+    /// independently of how many workers are running tasks.
+    /// </summary>
+    public static class Subprocesses
+    {
+        private static SemaphoreSlim _slots = new SemaphoreSlim(Environment.ProcessorCount);
+
+        /// <summary>
+        /// Set the limit, before any child process is started.
+        /// </summary>
+        public static void SetLimit(int limit)
+        {
+            _slots = new SemaphoreSlim(Math.Max(1, limit));
+        }
+
+        /// <summary>
+        /// Run `action`, which starts and waits for a child process, once a slot is available.
+        /// </summary>
+        public static T Run<T>(Func<T> action)
+        {
+            var slots = _slots;
+            slots.Wait();
+            try
+            {
+                return action();
+            }
+            finally
+            {
+                slots.Release();
+            }
+        }
+    }
+}
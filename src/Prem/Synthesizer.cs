@@ -11,6 +11,7 @@ using Prem.Util;
 namespace Prem
 {
     using TInput = Prem.Transformer.TreeLang.TInput;
+    using EvalMemo = Prem.Transformer.TreeLang.EvalMemo;
 
     using Env = Dictionary<EnvKey, string>;
 
@@ -26,6 +27,9 @@ namespace Prem
 
         public string file { get; }
 
+        // Shared by the `TInput`s of all rule sets applied to this input.
+        private EvalMemo _memo = new EvalMemo();
+
         public Input(SyntaxNodeContext inputTree, Pos errPos, string errMessage, string file)
         {
             this.tree = inputTree;
@@ -55,7 +59,7 @@ namespace Prem
             return AsTInput(env);
         }
 
-        public TInput AsTInput(Env env) => new TInput(tree.root, errNode, env);
+        public TInput AsTInput(Env env) => new TInput(tree.root, errNode, env, _memo);
 
         public override string ToString() => file;
     }
@@ -109,16 +113,23 @@ namespace Prem
         public override string ToString() => path;
     }
 
+    /// <summary>
+    /// A synthesizer solves one synthesis task at a time.
+    /// Synthesizers share no mutable state, use one per worker to synthesize concurrently.
+    /// Creating one is cheap: its synthesis engine is built on its first task.
+    /// </summary>
     public sealed class Synthesizer
     {
         private static ColorLogger Log = ColorLogger.Instance;
 
         private Stopwatch _stopwatch;
 
+        private TLearner _learner;
+
         public Synthesizer()
         {
             this._stopwatch = new Stopwatch();
-            TLearner.Setup();
+            this._learner = new TLearner();
         }
 
         public RuleSet Synthesize(ExampleGroup exampleGroup, int k)
@@ -214,7 +225,7 @@ namespace Prem
    
         private List<TProgram> SynthesizeTransformers(IEnumerable<TExample> examples, int k)
         {
-            var programs = TLearner.Learn(examples, k);
+            var programs = _learner.Learn(examples, k);
 #if DEBUG
             Log.Debug("Top programs:");
             programs.ForEachI((i, p) =>
@@ -1,7 +1,9 @@
 using System;
+using System.Collections.Concurrent;
 using System.Collections.Generic;
 using System.IO;
 using System.Linq;
+using System.Threading.Tasks;
 using Microsoft.ProgramSynthesis.Utils;
 using Newtonsoft.Json.Linq;
 using Prem.Util;
@@ -20,12 +22,24 @@ namespace Prem
         private int _topK;
         private string _output_dir;
         private List<string> _loaded_rule_files = new List<string>();
+        private int _jobs;
+        private Optional<ParseCache> _parse_cache = Optional<ParseCache>.Nothing;
+        private Optional<ValidationCache> _validation_cache = Optional<ValidationCache>.Nothing;
+        private ValidationTiers _tiers =
+            new ValidationTiers(Optional<Func<string, List<Parser.CompileError>>>.Nothing);
+        private int _speculation = 1;
+        private bool _stream = false;
+        private bool _resume = false;
+        private bool _multi_error = false;
+        private bool _project_mode = false;
 
-        public TaskRunner(string language, int topK, string outputDir)
+        public TaskRunner(string language, int topK, string outputDir, bool useParserService = true,
+            string compiler = "auto", int jobs = 1)
         {
-            this._parser = new Parser(language);
+            this._parser = new Parser(language, useParserService, compiler);
             this._topK = topK;
             this._output_dir = outputDir;
+            this._jobs = Math.Max(1, jobs);
 
             // ensure output dir exists
             if (!Directory.Exists(outputDir))
@@ -34,13 +48,149 @@ namespace Prem
             }
         }
 
+        /// <summary>
+        /// Enable the persistent parse cache.
+        /// </summary>
+        /// <param name="dir">Cache folder.</param>
+        /// <param name="maxSize">Maximal cache size, in bytes.</param>
+        public void UseParseCache(string dir, long maxSize)
+        {
+            _parse_cache = new ParseCache(dir, _parser.lang, _parser.Version, maxSize).Some();
+        }
+
+        /// <summary>
+        /// Enable memoization of candidate validation results.
+        /// </summary>
+        /// <param name="dir">Folder to persist results, or nothing to keep them in memory only.</param>
+        public void UseValidationCache(Optional<string> dir)
+        {
+            _validation_cache = new ValidationCache(_parser.lang, _parser.CompilerName, dir).Some();
+        }
+
+        /// <summary>
+        /// Reject candidates with syntax errors before compiling them, if the compiler has an in-process
+        /// syntax check (C# only), see `ValidationTiers`.
+        /// </summary>
+        public void UseSyntaxCheck()
+        {
+            _tiers = new ValidationTiers(_parser.SyntaxCheck);
+        }
+
+        /// <summary>
+        /// Validate up to `window` candidates of a testcase concurrently in Predict, see `RuleLib.Apply`.
+        /// </summary>
+        public void UseSpeculation(int window)
+        {
+            _speculation = Math.Max(1, window);
+        }
+
+        /// <summary>
+        /// Stream task records to `<task>.ndjson` as soon as each finishes, see `RecordWriter`.
+        /// </summary>
+        public void UseStreaming()
+        {
+            _stream = true;
+        }
+
+        /// <summary>
+        /// Compile testcases as documents of a C# project (a `.csproj` or a folder), see `ProjectContext`.
+        /// </summary>
+        public void UseProject(string path)
+        {
+            _parser.UseProject(new ProjectContext(path));
+            _project_mode = true;
+        }
+
+        /// <summary>
+        /// Apply every rule both compiled and interpreted in Bench and Predict, and report the outputs
+        /// which differ, see `RuleLib.diffCompiled`.
+        /// </summary>
+        public void UseDiffCompiled()
+        {
+            _rule_lib.diffCompiled = true;
+        }
+
+        /// <summary>
+        /// Stats of the differential check of compiled programs, if enabled.
+        /// </summary>
+        private JObject DiffCompiledStats()
+        {
+            if (!_rule_lib.diffCompiled) return null;
+
+            Log.Info("Compiled programs: {0} mismatch(es) in {1} application(s).",
+                _rule_lib.diffMismatches, _rule_lib.diffApplications);
+            var diff = new JObject();
+            diff.Add("applications", _rule_lib.diffApplications);
+            diff.Add("mismatches", _rule_lib.diffMismatches);
+            return new JObject { { "compiled programs", diff } };
+        }
+
+        /// <summary>
+        /// Repair several compile errors of a program in the same step, see `RepairStepsMultiError`.
+        /// </summary>
+        public void UseMultiError()
+        {
+            _multi_error = true;
+        }
+
+        /// <summary>
+        /// Resume a previous run in the same output folder: cases and groups already in the streamed
+        /// records are skipped, and rule sets synthesized by that run are restored from its checkpoints.
+        /// Implies streaming.
+        /// </summary>
+        public void UseResume()
+        {
+            _stream = true;
+            _resume = true;
+        }
+
+        private string CheckpointPath(string name) => Path.Combine(_output_dir, "checkpoints", name + ".bin");
+
+        /// <summary>
+        /// Persist a newly synthesized rule set, so that a resumed run needn't synthesize it again.
+        /// Only done when streaming, as resuming relies on the streamed records.
+        /// An empty rule set (synthesis failed, maybe without a pattern) is saved as an empty lib.
+        /// </summary>
+        private void SaveCheckpoint(string name, RuleSet ruleSet)
+        {
+            if (!_stream) return;
+
+            var path = CheckpointPath(name);
+            Directory.CreateDirectory(Path.GetDirectoryName(path));
+            var temp = path + ".tmp";
+            var ruleSets = ruleSet.IsEmpty ? new List<RuleSet>() : new List<RuleSet> { ruleSet };
+            new RuleLib(ruleSets).DumpBinary(temp);
+            File.Delete(path);
+            File.Move(temp, path); // never leave a partial checkpoint
+        }
+
+        private Optional<RuleSet> TryLoadCheckpoint(string name)
+        {
+            var path = CheckpointPath(name);
+            if (!File.Exists(path)) return Optional<RuleSet>.Nothing;
+
+            var lib = RuleLib.FromBinary(path);
+            return (lib.IsEmpty ? RuleSet.Empty : lib.ruleSets[0]).Some();
+        }
+
+        /// <summary>
+        /// Load rule libs, in either the XML or the binary format (detected by file content).
+        /// </summary>
         public void Load(IEnumerable<string> ruleFiles)
         {
-            ASTSerialization.Serialization.instance.grammarSetter(TLearner._grammar);
             foreach (var ruleFile in ruleFiles)
             {
-                var xmlObj = System.Xml.Linq.XElement.Load(ruleFile);
-                _rule_lib.Extend(RuleLib.FromXml(xmlObj));
+                if (BinaryRuleLib.IsBinary(ruleFile))
+                {
+                    // Programs are decoded lazily, thus the grammar is not needed yet.
+                    _rule_lib.Extend(RuleLib.FromBinary(ruleFile));
+                }
+                else
+                {
+                    ASTSerialization.Serialization.instance.grammarSetter(TLearner.Grammar);
+                    var xmlObj = System.Xml.Linq.XElement.Load(ruleFile);
+                    _rule_lib.Extend(RuleLib.FromXml(xmlObj));
+                }
                 _loaded_rule_files.Add(ruleFile);
                 Log.Info("Successfully loaded {0}: total {1} rule sets.", ruleFile,
                     _rule_lib.ruleSets.Count);
@@ -57,9 +207,9 @@ namespace Prem
 
             var exampleGroups = learningSets.SelectMany(set =>
                 Directory.GetDirectories(set).Sorted().SelectMany(folder =>
-                    TryMakeExampleGroup(folder, filter, true))).ToList();
+                    TryMakeExampleGroup(folder, filter, true).Select(lazy => (folder: folder, lazy: lazy))))
+                .ToList();
             var total = exampleGroups.Count;
-            var index = 1;
 
             var info = new JObject();
             info.Add("create time", DateTime.Now.ToString());
@@ -70,21 +220,64 @@ namespace Prem
                 info.Add("file filter", s);
             }
             
-            var records = new JArray();
-            foreach (var lazy in exampleGroups)
+            // Synthesis tasks are independent: with multiple workers, each task takes a free synthesizer,
+            // and the longest tasks (estimated by source sizes) are started first.
+            // The rule sets are added to the lib in input order afterwards, so the results are
+            // the same as a sequential run.
+            var ruleSets = new RuleSet[total];
+            var records = new RecordWriter(_output_dir, "learn", info, "synthesis tasks", _stream, _resume);
+            var tasks = exampleGroups.Select((g, i) => (index: i, folder: g.folder, lazy: g.lazy)).ToList();
+            if (_resume)
+            {
+                var left = new List<(int index, string folder, Lazy<ExampleGroup> lazy)>();
+                foreach (var t in tasks)
+                {
+                    var ruleSet = records.Finished.Contains(t.index)
+                        ? TryLoadCheckpoint($"learn-{t.index}")
+                        : Optional<RuleSet>.Nothing;
+                    if (ruleSet.HasValue)
+                    {
+                        ruleSets[t.index] = ruleSet.Value;
+                    }
+                    else // not recorded, or recorded but killed before the checkpoint
+                    {
+                        left.Add(t);
+                    }
+                }
+                tasks = left;
+                Log.Info("Learn: resumed, {0}/{1} groups left.", tasks.Count, total);
+            }
+            if (_jobs > 1)
             {
-                var group = lazy.Value;
-                Log.Info("Learning {0} ({1}/{2})", group, index, total);
+                tasks = tasks.OrderByDescending(t => EstimateLearningCost(t.folder)).ToList();
+            }
+
+            // Synthesizers (and their engines) are reused by later tasks, at most one per worker is created.
+            var synthesizers = new ConcurrentBag<Synthesizer> { _synthesizer };
+            var options = new ParallelOptions { MaxDegreeOfParallelism = _jobs };
+            // No buffering: tasks are handed to workers exactly in the scheduled order.
+            Parallel.ForEach(Partitioner.Create(tasks, EnumerablePartitionerOptions.NoBuffering), options, t => {
+                var group = t.lazy.Value;
+                Log.Info("Learning {0} ({1}/{2})", group, t.index + 1, total);
+
+                Synthesizer synthesizer;
+                if (!synthesizers.TryTake(out synthesizer))
+                {
+                    synthesizer = new Synthesizer();
+                }
+                var result = SynthesizeRuleSet(group, synthesizer);
+                synthesizers.Add(synthesizer);
+
+                ruleSets[t.index] = result.ruleSet;
+                SaveCheckpoint($"learn-{t.index}", result.ruleSet);
+                records.Add(t.index, result.stat);
+            });
 
-                var record = LearnRuleSet(group);
-                records.Add(record);
-                index++;
+            foreach (var ruleSet in ruleSets)
+            {
+                _rule_lib.add(ruleSet);
             }
-            info.Add("synthesis tasks", records);
-            
-            var jsonPath = Path.Combine(_output_dir, "learn.json");
-            File.WriteAllText(jsonPath, info.ToString());
-            Log.Info("Record saved to {0}.", jsonPath);
+            records.Finish();
         }
 
         public void Bench(IEnumerable<string> testingSets, Filter filter)
@@ -99,7 +292,6 @@ namespace Prem
                 Directory.GetDirectories(set).Sorted().SelectMany(folder =>
                     TryMakeExampleGroup(folder, filter, false))).ToList();
             var total = exampleGroups.Count;
-            var index = 1;
 
             var info = new JObject();
             info.Add("create time", DateTime.Now.ToString());
@@ -113,25 +305,45 @@ namespace Prem
                 info.Add("rule libraries loaded", new JArray(_loaded_rule_files.ToArray()));
             }
             
-            var records = new JArray();
-            foreach (var lazy in exampleGroups)
+            // Groups are independent and the rule lib is read only here, so both groups and examples
+            // can be processed by `_jobs` workers. Ordered queries keep the records in input order.
+            var records = new RecordWriter(_output_dir, "bench", info, "benchmarks", _stream, _resume);
+            var groups = exampleGroups.Select((lazy, i) => (index: i, lazy: lazy))
+                .Where(g => !records.Finished.Contains(g.index))
+                .AsParallel().AsOrdered().WithDegreeOfParallelism(_jobs)
+                .Select(g => (index: g.index, group: g.lazy.Value)).ToList();
+            if (_resume)
+            {
+                Log.Info("Bench: resumed, {0}/{1} groups left.", groups.Count, total);
+            }
+            // Tests are consumed as soon as they finish (in order), so that a group is recorded
+            // once its last test is done.
+            var tests = groups.SelectMany(g => g.group.examples)
+                .AsParallel().AsOrdered().WithDegreeOfParallelism(_jobs)
+                .WithMergeOptions(ParallelMergeOptions.NotBuffered)
+                .Select(CheckSolved);
+
+            var pending = new JArray();
+            using (var it = tests.GetEnumerator())
             {
-                var group = lazy.Value;
-                Log.Info("Benchmarking {0} ({1}/{2})", group, index, total);
+                foreach (var (index, group) in groups)
+                {
+                    while (pending.Count < group.Size && it.MoveNext())
+                    {
+                        pending.Add(it.Current);
+                    }
+                    Log.Info("Benchmarked {0} ({1}/{2})", group, index + 1, total);
 
-                var record = new JObject();
-                record.Add("group path", group.path);
-                record.Add("group size", group.Size);
-                record.Add("tests", new JArray(group.examples.Select(CheckSolved).ToArray()));
-                
-                records.Add(record);
-                index++;
+                    var record = new JObject();
+                    record.Add("group path", group.path);
+                    record.Add("group size", group.Size);
+                    record.Add("tests", pending);
+
+                    records.Add(index, record);
+                    pending = new JArray();
+                }
             }
-            info.Add("benchmarks", records);
-            
-            var jsonPath = Path.Combine(_output_dir, "bench.json");
-            File.WriteAllText(jsonPath, info.ToString());
-            Log.Info("Record saved to {0}.", jsonPath);
+            records.Finish(DiffCompiledStats());
         }
 
         public void Predict(IEnumerable<string> testingSets, bool interactive, string commandFile,
@@ -154,16 +366,29 @@ namespace Prem
                 Log.Info("{0} commands loaded from {1}.", _commands.Count, commandFile);
             }
             this._new_count = 0;
+            if (_resume) // restore rule sets learned interactively by the previous run
+            {
+                Optional<RuleSet> ruleSet;
+                while ((ruleSet = TryLoadCheckpoint($"new-{_new_count}")).HasValue)
+                {
+                    _rule_lib.add(ruleSet.Value);
+                    _new_count++;
+                }
+                if (_new_count > 0)
+                {
+                    Log.Info("Predict: {0} rule sets learned interactively restored.", _new_count);
+                }
+            }
 
+            // Testcases are indexed in input order, regardless of skipped ones.
             var testcases = testingSets.SelectMany(set =>
-                Directory.GetDirectories(set).Sorted().SelectMany(TryMakeInput)).ToList();
+                Directory.GetDirectories(set).Sorted().SelectMany(TryMakeInput))
+                .Select((lazy, i) => (index: i, lazy: lazy)).ToList();
             var total = testcases.Count;
-            var index = 1;
             if (skip > 0)
             {
                 testcases = testcases.Skip(skip).ToList();
                 Log.Info("Note: {0} testcases skipped.", skip);
-                index = skip + 1;
             }
 
             var info = new JObject();
@@ -178,46 +403,171 @@ namespace Prem
                 info.Add("interactive commands input file", commandFile);
             }
             
-            var records = new JArray();
-            foreach (var lazy in testcases)
+            var records = new RecordWriter(_output_dir, "predict", info, "tests", _stream, _resume);
+            if (_resume)
             {
-                var testcase = lazy.Value;
-                Log.Info("Predicting {0} ({1}/{2})", testcase, index, total);
+                testcases = testcases.Where(t => !records.Finished.Contains(t.index)).ToList();
+                Log.Info("Predict: resumed, {0}/{1} testcases left.", testcases.Count, total);
+            }
 
-                var record = CheckPassed(testcase, interactive);
-                records.Add(record);
-                index++;
+            if (interactive || _jobs == 1) // interactive mode learns new rules, thus must be sequential
+            {
+                foreach (var (index, lazy) in testcases)
+                {
+                    var testcase = lazy.Value;
+                    Log.Info("Predicting {0} ({1}/{2})", testcase, index + 1, total);
+
+                    var record = CheckPassed(testcase, interactive);
+                    records.Add(index, record);
+                }
+            }
+            else
+            {
+                // Testcases are independent: each has its own output folder, and compilers use their own
+                // scratch folders. Records are still in input order, and consumed as soon as they finish.
+                var stats = testcases.AsParallel().AsOrdered().WithDegreeOfParallelism(_jobs)
+                    .WithMergeOptions(ParallelMergeOptions.NotBuffered)
+                    .Select(t => {
+                        var testcase = t.lazy.Value;
+                        Log.Info("Predicting {0} ({1}/{2})", testcase, t.index + 1, total);
+                        return (index: t.index, record: CheckPassed(testcase, false));
+                    });
+                foreach (var stat in stats)
+                {
+                    records.Add(stat.index, stat.record);
+                }
+            }
+
+            var extra = new JObject();
+            extra.Add("validation tiers", _tiers.ToJson());
+            if (_validation_cache.HasValue)
+            {
+                var cache = new JObject();
+                cache.Add("hits", _validation_cache.Value.hits);
+                cache.Add("misses", _validation_cache.Value.misses);
+                extra.Add("validation cache", cache);
             }
-            info.Add("tests", records);
+            var diffStats = DiffCompiledStats();
+            if (diffStats != null) extra.Merge(diffStats);
+            records.Finish(extra);
+        }
+
+        /// <summary>
+        /// Repair a single program, as in Predict. Safe to call concurrently (but not with Learn).
+        /// </summary>
+        /// <param name="source">Source text.</param>
+        /// <param name="error">Its compile error, or nothing to find it by compiling.</param>
+        /// <param name="document">In project mode: the project document it is a version of, if any.</param>
+        /// <returns>The result: whether it is solved, the rules applied and the repaired source (if solved).</returns>
+        public JObject Repair(string source, Optional<Parser.CompileError> error, string document = null)
+        {
+            // The parser and the compilers work on files: each request has its own scratch folder.
+            var dir = Path.Combine(Path.GetTempPath(), "prem-repair-" + Guid.NewGuid().ToString("N"));
+            Directory.CreateDirectory(dir);
+            try
+            {
+                var file = Path.Combine(dir, "0" + _parser.GetSourceFileExtension());
+                File.WriteAllText(file, source);
+
+                var stat = new JObject();
+                document = document ?? file;
+                var err = error.HasValue ? error : _parser.Compile(file, document);
+                if (!err.HasValue)
+                {
+                    stat.Add("solved?", true);
+                    stat.Add("rules applied", new JArray());
+                    stat.Add("source", source);
+                    return stat;
+                }
+
+                var tree = Parse(file).First();
+                if (!tree.FindLeafWhere(n => n.pos.Equals(err.Value.pos)).HasValue)
+                {
+                    throw new ArgumentException($"No token found at error position {err.Value.pos}.");
+                }
 
-            var jsonPath = Path.Combine(_output_dir, "predict.json");
-            File.WriteAllText(jsonPath, info.ToString());
-            Log.Info("Record saved to {0}.", jsonPath);
+                var (passed, rulesApplied, _, outputs, _) =
+                    RepairSteps(new Input(tree, err.Value.pos, err.Value.message, file), dir, document);
+                stat.Add("solved?", passed);
+                stat.Add("rules applied", rulesApplied);
+                if (passed)
+                    stat.Add("source", File.ReadAllText(outputs.Last()));
+                return stat;
+            }
+            finally
+            {
+                try
+                {
+                    Directory.Delete(dir, true);
+                }
+                catch (IOException e)
+                {
+                    Log.Debug("Failed to delete {0}: {1}", dir, e.Message);
+                }
+            }
         }
 
-        public void Finish()
+        public int RuleSetCount => _rule_lib.ruleSets.Count;
+
+        /// <summary>
+        /// Save all rules and release resources.
+        /// </summary>
+        /// <param name="ruleFormat">Format to save the rules: xml | bin.</param>
+        public void Finish(string ruleFormat = "xml")
         {
-            var ruleFile = Path.Combine(_output_dir, "RuleLib.xml");
-            _rule_lib.DumpXml().Save(ruleFile);
+            string ruleFile;
+            if (ruleFormat == "bin")
+            {
+                ruleFile = Path.Combine(_output_dir, "RuleLib.bin");
+                _rule_lib.DumpBinary(ruleFile);
+            }
+            else
+            {
+                ruleFile = Path.Combine(_output_dir, "RuleLib.xml");
+                _rule_lib.DumpXml().Save(ruleFile);
+            }
             Log.Info("All rules saved to file {0} successfully.", ruleFile);
+
+            if (_parse_cache.HasValue)
+            {
+                Log.Info("Parse cache: {0} hit(s), {1} miss(es).", _parse_cache.Value.hits, _parse_cache.Value.misses);
+            }
+            _parser.Close();
         }
 
-        private JObject LearnRuleSet(ExampleGroup examples)
+        private JObject LearnRuleSet(ExampleGroup examples, string checkpoint)
         {
-            var ruleSet = _synthesizer.Synthesize(examples, _topK);
-            _rule_lib.add(ruleSet);
+            var result = SynthesizeRuleSet(examples, _synthesizer);
+            _rule_lib.add(result.ruleSet);
+            SaveCheckpoint(checkpoint, result.ruleSet);
+
+            return result.stat;
+        }
+
+        private (RuleSet ruleSet, JObject stat) SynthesizeRuleSet(ExampleGroup examples, Synthesizer synthesizer)
+        {
+            var ruleSet = synthesizer.Synthesize(examples, _topK);
 
             JObject stat = new JObject();
             stat.Add("example group path", examples.path);
             stat.Add("example group size", examples.Size);
-            stat.Add("synthesis time (ms)", _synthesizer.SynthesisTime);
+            stat.Add("synthesis time (ms)", synthesizer.SynthesisTime);
             stat.Add("synthesis succeeds?", !ruleSet.IsEmpty);
             stat.Add("rule set size", ruleSet.Size);
             stat.Add("rule set name", ruleSet.Name);
 
-            return stat;
+            return (ruleSet, stat);
         }
 
+        /// <summary>
+        /// Estimate how long a synthesis task takes, before parsing anything:
+        /// synthesis time grows with the tree sizes, thus with the total size of the source files.
+        /// </summary>
+        private static long EstimateLearningCost(string groupFolder) =>
+            Directory.GetFiles(groupFolder, "*", SearchOption.AllDirectories)
+                .Where(f => Path.GetFileName(f).StartsWith("[E]") || Path.GetFileName(f).StartsWith("[C]"))
+                .Sum(f => new FileInfo(f).Length);
+
         private JObject CheckSolved(Example example)
         {
             var expected = example.output.root;
@@ -226,6 +576,7 @@ namespace Prem
 
             JObject stat = new JObject();
             stat.Add("path", example.path);
+            stat.Add("skipped duplicates", result.skippedDuplicates);
             if (result is RuleLib.ApplySuccess<string>)
             {
                 var r = result as RuleLib.ApplySuccess<string>;
@@ -253,53 +604,17 @@ namespace Prem
                 Directory.CreateDirectory(outputDir);
             }
 
-            var testcases = new List<Input>();
-            testcases.Add(testcase);
-            var outputs = new List<string>();
-            outputs.Add(Path.Combine(outputDir,
-                testcases.Count + _parser.GetSourceFileExtension()));
-            
-            var rulesApplied = new JArray();
-            bool passed = false;
-
             // attempt to solve this testcase using existing rules (maybe multiple times)
-            while (true)
-            {
-                var result = TestOne(testcases.Last(), outputs.Last());
-                if (result is RuleLib.ApplySuccess<Parser.CompileError>)
-                {
-                    var r = result as RuleLib.ApplySuccess<Parser.CompileError>;
-                    rulesApplied.Add(r.ruleUsed);
-                    passed = true;
-                    break;
-                }
-                else if (result is RuleLib.ApplyFailure<Parser.CompileError>)
-                {
-                    var r = result as RuleLib.ApplyFailure<Parser.CompileError>;
-                    rulesApplied.Add(r.ruleUsed);
-
-                    if (testcases.Count < 5) // set up a new input for next step
-                    {
-                        testcases.Add(MakeInputFromFile(outputs.Last()));
-                        outputs.Add(Path.Combine(outputDir, 
-                            testcases.Count + _parser.GetSourceFileExtension()));
-                    }
-                    else
-                    {
-                        break;
-                    }
-                }
-                else // not appliable
-                {
-                    break;
-                }
-            }
+            var (passed, rulesApplied, testcases, _, skipped) = RepairSteps(testcase, outputDir, testcase.file);
 
             JObject stat = new JObject();
             stat.Add("path", testcase.file);
             stat.Add("solved?", passed);
             if (passed)
                 stat.Add("rules applied", rulesApplied);
+            if (_multi_error)
+                stat.Add("repair steps", testcases.Count);
+            stat.Add("skipped duplicates", skipped);
 
             if (!passed && _topK > 0 && interactive) // ask an expert to provide a fix to this example
             // and enlarge the rule lib with the newly synthesized rule set
@@ -359,20 +674,21 @@ namespace Prem
                     });
 
                     // 3. learn with the new example
-                    var fix = SyntaxNodeContext.FromJSON(_parser.ParseProgramAsJSON(fixFile));
+                    var fix = _parser.ParseProgram(fixFile);
                     var name = "new example " + _new_count;
+                    var checkpoint = "new-" + _new_count;
                     _new_count++;
                     var example = new Example(inp, fix, fixFile);
-                    var record = LearnRuleSet(new ExampleGroup(example, name));
+                    var record = LearnRuleSet(new ExampleGroup(example, name), checkpoint);
                     records.Add(record);
 
                     // 4. needs fix multiple times?
-                    var r = _parser.Compile(fixFile);
+                    var r = _parser.Compile(fixFile, testcase.file);
                     if (r.HasValue)
                     {
                         var err = r.Value;
                         var newCase = new Input(fix, err.pos, err.message, fixFile);
-                        var r1 = TestOne(newCase, fixFile + ".out");
+                        var r1 = TestOne(newCase, fixFile + ".out", testcase.file);
                         if (r1 is RuleLib.ApplySuccess<Parser.CompileError>) // we are done
                         {
                             cont = false;
@@ -393,13 +709,348 @@ namespace Prem
             return stat;
         }
 
-        private RuleLib.ApplyResult<Parser.CompileError> TestOne(Input testcase, string outputFile)
+        /// <summary>
+        /// Repair a testcase with existing rules: while the best candidate still has (another) compile error,
+        /// repair it again, up to 5 steps. The candidate of each step is saved to `<step>.<ext>` in `outputDir`.
+        /// </summary>
+        /// <param name="testcase">The testcase.</param>
+        /// <param name="outputDir">Folder to save candidates.</param>
+        /// <param name="document">The source file the testcase comes from, which matters in project mode.</param>
+        /// <returns>Whether the last candidate compiles, the rules applied, the input and the output file
+        /// of each step, and the number of duplicate candidates skipped in all steps.</returns>
+        private (bool passed, JArray rulesApplied, List<Input> testcases, List<string> outputs, int skippedDuplicates)
+            RepairSteps(Input testcase, string outputDir, string document)
         {
-            return _rule_lib.Apply(testcase, node => {
-                var code = string.Join(" ", node.ToTokenSeq());
-                System.IO.File.WriteAllText(outputFile, code);
-                return _parser.Compile(outputFile);
-            });
+            if (_multi_error) return RepairStepsMultiError(testcase, outputDir, document);
+
+            var testcases = new List<Input>();
+            testcases.Add(testcase);
+            var outputs = new List<string>();
+            outputs.Add(Path.Combine(outputDir,
+                testcases.Count + _parser.GetSourceFileExtension()));
+            
+            var rulesApplied = new JArray();
+            bool passed = false;
+            int skipped = 0;
+
+            while (true)
+            {
+                var result = TestOne(testcases.Last(), outputs.Last(), document);
+                skipped += result.skippedDuplicates;
+                if (result is RuleLib.ApplySuccess<Parser.CompileError>)
+                {
+                    var r = result as RuleLib.ApplySuccess<Parser.CompileError>;
+                    rulesApplied.Add(r.ruleUsed);
+                    passed = true;
+                    break;
+                }
+                else if (result is RuleLib.ApplyFailure<Parser.CompileError>)
+                {
+                    var r = result as RuleLib.ApplyFailure<Parser.CompileError>;
+                    rulesApplied.Add(r.ruleUsed);
+
+                    if (testcases.Count < 5) // set up a new input for next step
+                    {
+                        testcases.Add(MakeNextInput(r, outputs.Last()));
+                        outputs.Add(Path.Combine(outputDir, 
+                            testcases.Count + _parser.GetSourceFileExtension()));
+                    }
+                    else
+                    {
+                        break;
+                    }
+                }
+                else // not appliable
+                {
+                    break;
+                }
+            }
+
+            return (passed, rulesApplied, testcases, outputs, skipped);
+        }
+
+        /// <summary>
+        /// Like `RepairSteps`, but all compile errors of the program are known at each step, and
+        /// independent errors are repaired in the same step:
+        /// 1. each error is repaired on its own, by the first candidate whose errors (compared by message)
+        ///    are among the other errors, i.e. it fixes this error without breaking anything else;
+        /// 2. fixes changing disjoint token ranges are merged, and the merged program is compiled once;
+        ///    if it introduces errors, only the first fix is taken.
+        /// If no error can be fixed that way, the step goes on as `RepairSteps` does with the first error.
+        /// </summary>
+        private (bool passed, JArray rulesApplied, List<Input> testcases, List<string> outputs, int skippedDuplicates)
+            RepairStepsMultiError(Input testcase, string outputDir, string document)
+        {
+            var testcases = new List<Input>();
+            var outputs = new List<string>();
+            var rulesApplied = new JArray();
+            int skipped = 0;
+
+            var tree = testcase.tree;
+            var file = testcase.file;
+            var errors = _parser.CompileAll(file, document);
+            if (!errors.Any()) // should not happen, take the given error anyway
+            {
+                errors.Add(new Parser.CompileError(testcase.errNode.pos, testcase.errMessage));
+            }
+
+            while (testcases.Count < 5)
+            {
+                var tokens = tree.root.ToTokenSeq().ToList();
+                var session = _parser.CompileSession(string.Join(" ", tokens), document);
+
+                // 1. fix each error on its own
+                var fixes = new List<Fix>();
+                Input first = null;
+                RuleLib.ApplyResult<Parser.CompileError> firstResult = null;
+                foreach (var error in errors)
+                {
+                    if (!tree.FindLeafWhere(n => n.pos.Equals(error.pos)).HasValue)
+                    {
+                        Log.Debug("Error position {0} not located in {1}, skipped.", error.pos, file);
+                        continue;
+                    }
+
+                    var input = new Input(tree.Copy(), error.pos, error.message, file);
+                    var others = errors.ToList();
+                    others.Remove(error);
+                    var checkedCodes = new ConcurrentDictionary<string, List<Parser.CompileError>>();
+                    var result = _rule_lib.Apply(input, node => {
+                        var code = string.Join(" ", node.ToTokenSeq());
+                        return _tiers.Validate(code, c => {
+                            var remaining = CompileAll(c, session, document);
+                            checkedCodes[c] = remaining;
+                            return remaining;
+                        }, remaining => IsSubMultiset(remaining, others) ? Optional<Parser.CompileError>.Nothing
+                            : remaining.First().Some(), out _);
+                    }, _speculation);
+                    skipped += result.skippedDuplicates;
+
+                    if (first == null)
+                    {
+                        first = input;
+                        firstResult = result;
+                    }
+                    if (result is RuleLib.ApplySuccess<Parser.CompileError>)
+                    {
+                        var r = result as RuleLib.ApplySuccess<Parser.CompileError>;
+                        var fixedTokens = r.candidate.ToTokenSeq().ToList();
+                        fixes.Add(new Fix(error, r.ruleUsed, r.candidate, ChangedRange(tokens, fixedTokens),
+                            checkedCodes[string.Join(" ", fixedTokens)]));
+                    }
+                }
+
+                if (first == null) // no error can be located
+                {
+                    break;
+                }
+                testcases.Add(first);
+                var output = Path.Combine(outputDir, testcases.Count + _parser.GetSourceFileExtension());
+                outputs.Add(output);
+
+                if (fixes.Empty()) // go on with the first error only, as `RepairSteps`
+                {
+                    if (!(firstResult is RuleLib.ApplyFailure<Parser.CompileError>))
+                    {
+                        break;
+                    }
+
+                    var r = firstResult as RuleLib.ApplyFailure<Parser.CompileError>;
+                    rulesApplied.Add(r.ruleUsed);
+                    var code = string.Join(" ", r.candidate.ToTokenSeq());
+                    File.WriteAllText(output, code);
+                    errors = CompileAll(code, session, document).ToList();
+                    tree = NextTree(r.candidate, errors, output);
+                    file = output;
+                    continue;
+                }
+
+                // 2. merge fixes of disjoint token ranges
+                var chosen = new List<Fix>();
+                foreach (var fix in fixes)
+                {
+                    if (chosen.All(f => fix.end < f.start || f.end < fix.start))
+                    {
+                        chosen.Add(fix);
+                    }
+                }
+
+                string nextCode = null;
+                List<Parser.CompileError> nextErrors = null;
+                if (chosen.Count > 1)
+                {
+                    var merged = tokens.ToList();
+                    foreach (var fix in chosen.OrderByDescending(f => f.start)) // from right to left
+                    {
+                        merged.RemoveRange(fix.start, fix.end - fix.start);
+                        merged.InsertRange(fix.start, fix.replacement);
+                    }
+                    nextCode = string.Join(" ", merged);
+                    nextErrors = CompileAll(nextCode, session, document);
+
+                    var expected = errors.ToList();
+                    chosen.ForEach(f => expected.Remove(f.error));
+                    if (!IsSubMultiset(nextErrors, expected))
+                    {
+                        Log.Debug("Merged fixes of {0} introduce errors, take the first fix only.", file);
+                        chosen = chosen.Take(1).ToList();
+                    }
+                }
+                if (chosen.Count == 1)
+                {
+                    nextCode = string.Join(" ", chosen[0].candidate.ToTokenSeq());
+                    nextErrors = chosen[0].remaining;
+                }
+
+                chosen.ForEach(f => rulesApplied.Add(f.rule));
+                File.WriteAllText(output, nextCode);
+                if (!nextErrors.Any())
+                {
+                    return (true, rulesApplied, testcases, outputs, skipped);
+                }
+
+                errors = nextErrors.ToList();
+                tree = chosen.Count == 1 ? NextTree(chosen[0].candidate, errors, output) : Parse(output).First();
+                file = output;
+            }
+
+            return (false, rulesApplied, testcases, outputs, skipped);
+        }
+
+        /// <summary>
+        /// A fix of one error, changing `[start, end)` of the program tokens to `replacement`.
+        /// </summary>
+        private class Fix
+        {
+            public Parser.CompileError error { get; }
+
+            public string rule { get; }
+
+            public SyntaxNode candidate { get; }
+
+            public int start { get; }
+
+            public int end { get; }
+
+            public List<string> replacement { get; }
+
+            public List<Parser.CompileError> remaining { get; }
+
+            public Fix(Parser.CompileError error, string rule, SyntaxNode candidate,
+                (int start, int end, List<string> replacement) range, List<Parser.CompileError> remaining)
+            {
+                this.error = error;
+                this.rule = rule;
+                this.candidate = candidate;
+                this.start = range.start;
+                this.end = range.end;
+                this.replacement = range.replacement;
+                this.remaining = remaining;
+            }
+        }
+
+        /// <summary>
+        /// Find the tokens changed from `before` to `after`: all but their common prefix and suffix.
+        /// </summary>
+        private static (int start, int end, List<string> replacement) ChangedRange(List<string> before,
+            List<string> after)
+        {
+            var prefix = 0;
+            while (prefix < before.Count && prefix < after.Count && before[prefix] == after[prefix])
+            {
+                prefix++;
+            }
+            var suffix = 0;
+            while (suffix < before.Count - prefix && suffix < after.Count - prefix
+                && before[before.Count - 1 - suffix] == after[after.Count - 1 - suffix])
+            {
+                suffix++;
+            }
+
+            return (prefix, before.Count - suffix, after.GetRange(prefix, after.Count - prefix - suffix));
+        }
+
+        /// <summary>
+        /// Whether every error of `errors` is also in `others`, as many times, compared by message:
+        /// positions are not comparable, as candidates are laid out differently.
+        /// </summary>
+        private static bool IsSubMultiset(List<Parser.CompileError> errors, List<Parser.CompileError> others)
+        {
+            var counts = others.GroupBy(e => e.message).ToDictionary(g => g.Key, g => g.Count());
+            foreach (var error in errors)
+            {
+                int count;
+                if (!counts.TryGetValue(error.message, out count) || count == 0) return false;
+                counts[error.message] = count - 1;
+            }
+            return true;
+        }
+
+        /// <summary>
+        /// The tree of the next step, from a candidate saved in `file`: reused if all errors can be located
+        /// in it, otherwise parsed from `file`.
+        /// </summary>
+        private SyntaxNodeContext NextTree(SyntaxNode candidate, List<Parser.CompileError> errors, string file)
+        {
+            var tree = SyntaxNodeContext.RelocateOnOneLine(candidate);
+            if (tree.HasValue && errors.All(e => tree.Value.FindLeafWhere(n => n.pos.Equals(e.pos)).HasValue))
+            {
+                return tree.Value;
+            }
+            return Parse(file).First();
+        }
+
+        /// <summary>
+        /// Compile a candidate program, through the validation cache if enabled.
+        /// </summary>
+        /// <param name="code">Candidate source text.</param>
+        /// <param name="session">The compile session of the program the candidate is derived from.</param>
+        /// <param name="document">The source file the candidate is a version of.</param>
+        /// <returns>All compile errors, empty if it compiles. Don't modify it, it may be shared.</returns>
+        private List<Parser.CompileError> CompileAll(string code, Func<string, List<Parser.CompileError>> session,
+            string document)
+        {
+            if (!_validation_cache.HasValue) return session(code);
+            // In project mode, the result also depends on the document.
+            return _validation_cache.Value.Check(code, session, _project_mode ? document : "");
+        }
+
+        private RuleLib.ApplyResult<Parser.CompileError> TestOne(Input testcase, string outputFile, string document)
+        {
+            var session = _parser.CompileSession(string.Join(" ", testcase.tree.root.ToTokenSeq()), document);
+            var bySyntax = new ConcurrentDictionary<SyntaxNode, bool>();
+            var result = _rule_lib.Apply(testcase, node => {
+                bool syntaxOnly;
+                var err = _tiers.Validate(string.Join(" ", node.ToTokenSeq()),
+                    code => CompileAll(code, session, document), errors => errors.TryFirst(_ => true), out syntaxOnly);
+                if (syntaxOnly) bySyntax[node] = true;
+                return err;
+            }, _speculation);
+
+            // The next repair step starts from the compile error, which the syntax check may not report first.
+            if (result is RuleLib.ApplyFailure<Parser.CompileError>)
+            {
+                var r = result as RuleLib.ApplyFailure<Parser.CompileError>;
+                if (bySyntax.ContainsKey(r.candidate))
+                {
+                    var err = CompileAll(string.Join(" ", r.candidate.ToTokenSeq()), session, document)
+                        .TryFirst(_ => true).OrElse(r.error);
+                    result = new RuleLib.ApplyFailure<Parser.CompileError>(err, r.ruleUsed, r.candidate) {
+                        skippedDuplicates = r.skippedDuplicates
+                    };
+                }
+            }
+
+            // keep the last candidate on disk, the next repair step starts from it
+            var candidate = result is RuleLib.ApplySuccess<Parser.CompileError>
+                ? ((RuleLib.ApplySuccess<Parser.CompileError>)result).candidate
+                : result is RuleLib.ApplyFailure<Parser.CompileError>
+                ? ((RuleLib.ApplyFailure<Parser.CompileError>)result).candidate : null;
+            if (candidate != null)
+            {
+                System.IO.File.WriteAllText(outputFile, string.Join(" ", candidate.ToTokenSeq()));
+            }
+            return result;
         }
 
         private T GetUserInput<T>(string prompt, Func<string, Optional<T>> inputParser)
@@ -448,7 +1099,6 @@ namespace Prem
                 Log.Warning("Ignore example {0}: Multiple or no input source found", folder);
                 return Optional<Example>.Nothing;
             }
-            var inputJSON = _parser.ParseProgramAsJSON(fs[0]);
             var file = fs[0];
 
             fs = Directory.GetFiles(folder, "[C]*", SearchOption.TopDirectoryOnly);
@@ -457,14 +1107,37 @@ namespace Prem
                 Log.Warning("Ignore example {0}: Multiple or no output source found", folder);
                 return Optional<Example>.Nothing;
             }
-            var outputJSON = _parser.ParseProgramAsJSON(fs[0]);
+            var trees = Parse(file, fs[0]);
 
             return new Example(
-                new Input(SyntaxNodeContext.FromJSON(inputJSON), info.pos, info.message, file),
-                SyntaxNodeContext.FromJSON(outputJSON), folder
+                new Input(trees[0], info.pos, info.message, file),
+                trees[1], folder
             ).Some();
         }
 
+        /// <summary>
+        /// Parse source files, looking up the parse cache first (if enabled):
+        /// only the files missing in the cache are sent to the parser, and then cached.
+        /// </summary>
+        /// <param name="files">Source files.</param>
+        /// <returns>Trees, in the same order as `files`.</returns>
+        private List<SyntaxNodeContext> Parse(params string[] files)
+        {
+            if (!_parse_cache.HasValue) return _parser.ParsePrograms(files);
+
+            var cache = _parse_cache.Value;
+            var trees = files.Select(f => cache.TryGet(f).OrElse(null)).ToList();
+            var missed = Enumerable.Range(0, files.Length).Where(i => trees[i] == null).ToList();
+            var parsed = _parser.ParsePrograms(missed.Select(i => files[i]));
+            for (int k = 0; k < missed.Count; k++)
+            {
+                cache.Put(files[missed[k]], parsed[k]);
+                trees[missed[k]] = parsed[k];
+            }
+
+            return trees;
+        }
+
         private Optional<Lazy<ExampleGroup>> TryMakeExampleGroup(string folder, Filter filter, bool trim)
         {
             var folders = Directory.GetDirectories(folder, "*", SearchOption.TopDirectoryOnly).Sorted().Where(f => TestFilter(filter, f)).ToList();
@@ -496,10 +1169,28 @@ namespace Prem
 
         private Input MakeInputFromFile(string file)
         {
-            var inputJSON = _parser.ParseProgramAsJSON(file);
-            var error = _parser.Compile(file).Value;
+            var tree = Parse(file).First();
+            var error = _parser.Compile(file, file).Value;
+
+            return new Input(tree, error.pos, error.message, file);
+        }
+
+        /// <summary>
+        /// Set up the input of the next repair step from a rejected candidate, saved in `file`.
+        /// Its tree is already in memory, and its compile error is already known, thus it needs
+        /// neither parsing nor compiling, unless the error position can't be located in the tree.
+        /// </summary>
+        private Input MakeNextInput(RuleLib.ApplyFailure<Parser.CompileError> failure, string file)
+        {
+            var error = failure.error;
+            var tree = SyntaxNodeContext.RelocateOnOneLine(failure.candidate);
+            if (tree.HasValue && tree.Value.FindLeafWhere(n => n.pos.Equals(error.pos)).HasValue)
+            {
+                return new Input(tree.Value, error.pos, error.message, file);
+            }
 
-            return new Input(SyntaxNodeContext.FromJSON(inputJSON), error.pos, error.message, file);
+            Log.Debug("Error position {0} not located in the candidate tree, parse {1}.", error.pos, file);
+            return new Input(Parse(file).First(), error.pos, error.message, file);
         }
 
         private Optional<Lazy<Input>> TryMakeInput(string folder)
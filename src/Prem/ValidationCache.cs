@@ -0,0 +1,169 @@
+using System;
+using System.Collections.Concurrent;
+using System.Collections.Generic;
+using System.IO;
+using System.Linq;
+using System.Security.Cryptography;
+using System.Text;
+using System.Threading;
+using Microsoft.ProgramSynthesis.Utils;
+
+using Prem.Util;
+
+namespace Prem
+{
+    using CompileError = Parser.CompileError;
+
+    /// <summary>
+    /// Memoizes validation results of candidate programs: different rules often produce the same candidate.
+    ///
+    /// A result is keyed by the SHA-256 of the language, the compiler and the candidate code
+    /// (i.e. its token sequence). Results are kept in memory, and optionally in a folder,
+    /// one file `<key>` per result, so that they can be reused by later runs.
+    /// Concurrent checks of the same candidate compile it only once.
+    /// </summary>
+    public class ValidationCache
+    {
+        private static ColorLogger Log = ColorLogger.Instance;
+
+        // Bump this whenever the result format changes.
+        private const int FORMAT_VERSION = 2;
+
+        private byte[] _salt;
+
+        private Optional<string> _dir;
+
+        private ConcurrentDictionary<string, Lazy<List<CompileError>>> _results =
+            new ConcurrentDictionary<string, Lazy<List<CompileError>>>();
+
+        private int _hits;
+
+        private int _misses;
+
+        public int hits => _hits;
+
+        public int misses => _misses;
+
+        /// <summary>
+        /// Create a cache.
+        /// </summary>
+        /// <param name="lang">Language.</param>
+        /// <param name="compiler">Compiler configuration, e.g. its name.</param>
+        /// <param name="dir">Folder to persist results, or nothing to keep them in memory only.</param>
+        public ValidationCache(string lang, string compiler, Optional<string> dir)
+        {
+            this._salt = Encoding.UTF8.GetBytes($"{FORMAT_VERSION}\0{lang}\0{compiler}\0");
+            this._dir = dir;
+            if (dir.HasValue)
+            {
+                Directory.CreateDirectory(dir.Value);
+            }
+        }
+
+        private string Key(string code, string context)
+        {
+            using (var sha = SHA256.Create())
+            {
+                var bytes = Encoding.UTF8.GetBytes(context == "" ? code : $"{context}\0{code}");
+                sha.TransformBlock(_salt, 0, _salt.Length, null, 0);
+                sha.TransformFinalBlock(bytes, 0, bytes.Length);
+                return String.Concat(sha.Hash.Select(b => b.ToString("x2")));
+            }
+        }
+
+        /// <summary>
+        /// Check a candidate, reusing the result of an identical candidate if any.
+        /// </summary>
+        /// <param name="code">Candidate source text.</param>
+        /// <param name="check">The real check, called on a cache miss.</param>
+        /// <param name="context">Anything else the result depends on, e.g. the document in project mode.</param>
+        /// <returns>All compile errors, empty if it compiles. Don't modify it, it is shared.</returns>
+        public List<CompileError> Check(string code, Func<string, List<CompileError>> check, string context = "")
+        {
+            var key = Key(code, context);
+            var computed = false;
+            var lazy = _results.GetOrAdd(key, _ => new Lazy<List<CompileError>>(() => {
+                List<CompileError> result;
+                if (!TryLoad(key, out result)) // a result persisted by a previous run is also a hit
+                {
+                    computed = true;
+                    result = check(code);
+                    Store(key, result);
+                }
+                return result;
+            }));
+
+            var value = lazy.Value;
+            if (computed) Interlocked.Increment(ref _misses);
+            else Interlocked.Increment(ref _hits);
+            return value;
+        }
+
+        // On disk, a result has one line per error: `line \t column \t message`, where line breaks
+        // (and backslashes) in the message are escaped. It is empty if the candidate compiles.
+
+        private bool TryLoad(string key, out List<CompileError> result)
+        {
+            result = null;
+            if (!_dir.HasValue) return false;
+
+            var path = Path.Combine(_dir.Value, key);
+            try
+            {
+                result = File.ReadAllLines(path).Where(l => l != "").Select(line => {
+                    var fields = line.Split(new[] { '\t' }, 3);
+                    return new CompileError(new Pos(int.Parse(fields[0]), int.Parse(fields[1])), Unescape(fields[2]));
+                }).ToList();
+                return true;
+            }
+            catch (FileNotFoundException)
+            {
+                return false;
+            }
+            catch (Exception e)
+            {
+                Log.Warning("Validation cache: ignore broken entry {0}: {1}: {2}", path, e.GetType(), e.Message);
+                return false;
+            }
+        }
+
+        private static string Escape(string message) =>
+            message.Replace("\\", "\\\\").Replace("\r", "\\r").Replace("\n", "\\n");
+
+        private static string Unescape(string message)
+        {
+            var sb = new StringBuilder();
+            for (int i = 0; i < message.Length; i++)
+            {
+                if (message[i] == '\\' && i + 1 < message.Length)
+                {
+                    i++;
+                    sb.Append(message[i] == 'n' ? '\n' : message[i] == 'r' ? '\r' : message[i]);
+                }
+                else
+                {
+                    sb.Append(message[i]);
+                }
+            }
+            return sb.ToString();
+        }
+
+        private void Store(string key, List<CompileError> result)
+        {
+            if (!_dir.HasValue) return;
+
+            var path = Path.Combine(_dir.Value, key);
+            var temp = path + "." + Guid.NewGuid().ToString("N");
+            try
+            {
+                File.WriteAllLines(temp, result.Select(e => $"{e.pos.line}\t{e.pos.offset}\t{Escape(e.message)}"));
+                File.Move(temp, path);
+            }
+            catch (IOException e) // e.g. another run has just stored the same entry
+            {
+                Log.Debug("Validation cache: failed to store {0}: {1}", path, e.Message);
+                File.Delete(temp);
+            }
+        }
+    }
+}
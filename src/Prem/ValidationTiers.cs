@@ -0,0 +1,109 @@
+using System;
+using System.Collections.Generic;
+using System.Diagnostics;
+using System.Linq;
+using System.Threading;
+using Microsoft.ProgramSynthesis.Utils;
+using Newtonsoft.Json.Linq;
+
+namespace Prem
+{
+    using CompileError = Parser.CompileError;
+
+    /// <summary>
+    /// Validates candidates in tiers, from the cheapest:
+    ///   1. "syntax": only parse the candidate in-process (if the compiler has such a check, see
+    ///      `Validator.SyntaxCheck`), and reject it right away if its syntax errors are rejected;
+    ///   2. "compile": compile the survivors.
+    /// As the syntax errors are among the compile errors, a candidate rejected in tier 1 would be rejected
+    /// in tier 2 as well, provided that rejecting is monotone (more errors are never better).
+    ///
+    /// The number of checks, rejections and the time spent are counted per tier. Safe to use from
+    /// several threads at a time.
+    /// </summary>
+    public class ValidationTiers
+    {
+        private class Tier
+        {
+            public string name { get; }
+
+            public int checks;
+
+            public int rejections;
+
+            public long ticks;
+
+            public Tier(string name)
+            {
+                this.name = name;
+            }
+
+            public List<CompileError> Run(Func<List<CompileError>> check)
+            {
+                var watch = Stopwatch.StartNew();
+                var errors = check();
+                Interlocked.Add(ref ticks, watch.ElapsedTicks);
+                Interlocked.Increment(ref checks);
+                return errors;
+            }
+
+            public JObject ToJson() => new JObject {
+                { "checks", checks },
+                { "rejections", rejections },
+                { "time (ms)", ticks * 1000 / Stopwatch.Frequency }
+            };
+        }
+
+        private Optional<Func<string, List<CompileError>>> _syntax_check;
+
+        private Tier _syntax = new Tier("syntax");
+
+        private Tier _compile = new Tier("compile");
+
+        /// <summary>
+        /// Create the tiers.
+        /// </summary>
+        /// <param name="syntaxCheck">The syntax-only check, or nothing to compile every candidate.</param>
+        public ValidationTiers(Optional<Func<string, List<CompileError>>> syntaxCheck)
+        {
+            this._syntax_check = syntaxCheck;
+        }
+
+        /// <summary>
+        /// Validate a candidate.
+        /// </summary>
+        /// <param name="code">Candidate source text.</param>
+        /// <param name="compile">The full check.</param>
+        /// <param name="reject">Returns an error if the candidate is rejected by these errors.</param>
+        /// <param name="bySyntax">Whether it is rejected by the syntax check, i.e. it is not compiled.</param>
+        /// <returns>The error rejecting the candidate, or nothing if accepted.</returns>
+        public Optional<T> Validate<T>(string code, Func<string, List<CompileError>> compile,
+            Func<List<CompileError>, Optional<T>> reject, out bool bySyntax)
+        {
+            bySyntax = false;
+            if (_syntax_check.HasValue)
+            {
+                var err = reject(_syntax.Run(() => _syntax_check.Value(code)));
+                if (err.HasValue)
+                {
+                    Interlocked.Increment(ref _syntax.rejections);
+                    bySyntax = true;
+                    return err;
+                }
+            }
+
+            var result = reject(_compile.Run(() => compile(code)));
+            if (result.HasValue)
+            {
+                Interlocked.Increment(ref _compile.rejections);
+            }
+            return result;
+        }
+
+        /// <summary>
+        /// Statistics of each tier.
+        /// </summary>
+        public JObject ToJson() => new JObject(new[] { _syntax, _compile }
+            .Select(t => new JProperty(t.name, t.ToJson())));
+    }
+}
@@ -0,0 +1,560 @@
+using System;
+using System.Collections.Generic;
+using System.Diagnostics;
+using System.Globalization;
+using System.IO;
+using System.Linq;
+using System.Text.RegularExpressions;
+using Microsoft.CodeAnalysis.CSharp;
+using Microsoft.CodeAnalysis.CSharp.Syntax;
+using Microsoft.CodeAnalysis.Text;
+using Microsoft.ProgramSynthesis.Utils;
+
+using Prem.Util;
+
+namespace Prem
+{
+    // NOTE: `Microsoft.CodeAnalysis` is not imported as a whole, its `Optional<T>` clashes with PROSE's.
+    using Diagnostic = Microsoft.CodeAnalysis.Diagnostic;
+    using DiagnosticSeverity = Microsoft.CodeAnalysis.DiagnosticSeverity;
+    using MetadataReference = Microsoft.CodeAnalysis.MetadataReference;
+    using OutputKind = Microsoft.CodeAnalysis.OutputKind;
+    using RoslynNode = Microsoft.CodeAnalysis.SyntaxNode;
+    using SyntaxTree = Microsoft.CodeAnalysis.SyntaxTree;
+
+    using CompileError = Parser.CompileError;
+
+    /// <summary>
+    /// A validator checks whether a program compiles, and if not, reports its compile errors.
+    /// Checks may be called from several threads at a time.
+    /// Dispose it once no more checks are needed, to release what it holds (e.g. a helper process).
+    /// </summary>
+    public abstract class Validator : IDisposable
+    {
+        protected static ColorLogger Log = ColorLogger.Instance;
+
+        /// <summary>
+        /// Check a source file.
+        /// </summary>
+        /// <param name="sourceFile">Source file.</param>
+        /// <returns>All compile errors, in the order the compiler reports them; empty if it compiles.</returns>
+        public abstract List<CompileError> CheckAllFile(string sourceFile);
+
+        /// <summary>
+        /// Check a program given as source text.
+        /// </summary>
+        /// <param name="code">Source text.</param>
+        /// <returns>All compile errors, in the order the compiler reports them; empty if it compiles.</returns>
+        public abstract List<CompileError> CheckAll(string code);
+
+        /// <summary>
+        /// Check a source file.
+        /// </summary>
+        /// <param name="sourceFile">Source file.</param>
+        /// <returns>The first compile error, or nothing if it compiles.</returns>
+        public virtual Optional<CompileError> CheckFile(string sourceFile) =>
+            CheckAllFile(sourceFile).TryFirst(_ => true);
+
+        /// <summary>
+        /// Check a program given as source text.
+        /// </summary>
+        /// <param name="code">Source text.</param>
+        /// <returns>The first compile error, or nothing if it compiles.</returns>
+        public virtual Optional<CompileError> Check(string code) => CheckAll(code).TryFirst(_ => true);
+
+        /// <summary>
+        /// Start checking candidates derived from one program, e.g. all candidates of a testcase.
+        /// A validator may take advantage of it, e.g. by rechecking only the edited part of a candidate.
+        /// </summary>
+        /// <param name="baseCode">Source text of the program.</param>
+        /// <returns>A check of candidates, as `CheckAll`.</returns>
+        public virtual Func<string, List<CompileError>> StartSession(string baseCode) => CheckAll;
+
+        /// <summary>
+        /// A cheap in-process check which only parses a program, if the language has one: its errors
+        /// (the syntax errors) are among those of `CheckAll`, thus a candidate may be rejected by them
+        /// before it is compiled.
+        /// </summary>
+        public virtual Optional<Func<string, List<CompileError>>> SyntaxCheck =>
+            Optional<Func<string, List<CompileError>>>.Nothing;
+
+        public abstract string Name { get; }
+
+        public virtual void Dispose()
+        {
+        }
+
+        /// <summary>
+        /// Create a fresh temporary folder, so that concurrent checks never share files.
+        /// </summary>
+        protected static string CreateScratchDir(string prefix)
+        {
+            var dir = Path.Combine(Path.GetTempPath(), prefix + "-" + Guid.NewGuid().ToString("N"));
+            Directory.CreateDirectory(dir);
+            return dir;
+        }
+
+        protected static void DeleteScratchDir(string dir)
+        {
+            try
+            {
+                Directory.Delete(dir, true);
+            }
+            catch (IOException e)
+            {
+                Log.Debug("Failed to delete {0}: {1}", dir, e.Message);
+            }
+        }
+    }
+
+    /// <summary>
+    /// Validate by invoking the C# compiler `csc` from command line.
+    /// </summary>
+    public class CscValidator : Validator
+    {
+        public override string Name => "csc";
+
+        public override Optional<Func<string, List<CompileError>>> SyntaxCheck =>
+            RoslynValidator.ParseCheck.Some();
+
+        public override List<CompileError> CheckAll(string code)
+        {
+            var dir = CreateScratchDir("prem-csc");
+            try
+            {
+                var file = Path.Combine(dir, "candidate.cs");
+                File.WriteAllText(file, code);
+                return Subprocesses.Run(() => Compile(file, dir));
+            }
+            finally
+            {
+                DeleteScratchDir(dir);
+            }
+        }
+
+        public override List<CompileError> CheckAllFile(string sourceFile)
+        {
+            var dir = CreateScratchDir("prem-csc");
+            try
+            {
+                return Subprocesses.Run(() => Compile(sourceFile, dir));
+            }
+            finally
+            {
+                DeleteScratchDir(dir);
+            }
+        }
+
+        private List<CompileError> Compile(string sourceFile, string outputDir)
+        {
+            using (var process = new Process())
+            {
+                process.StartInfo.FileName = "csc";
+                // NOTE: file name shouldn't have empty spaces.
+                process.StartInfo.Arguments = $"{sourceFile} -out:{Path.Combine(outputDir, "tmp.exe")}";
+                process.StartInfo.UseShellExecute = false;
+                process.StartInfo.RedirectStandardOutput = true;
+                process.StartInfo.RedirectStandardError = true;
+                Log.Debug("CLI: {0} {1}", process.StartInfo.FileName, process.StartInfo.Arguments);
+
+                if (!process.Start())
+                {
+                    Log.Error("Fatal: cannot invoke csc");
+                    Environment.Exit(1);
+                }
+
+                var output = process.StandardOutput.ReadToEnd();
+                process.WaitForExit();
+                var errors = new List<CompileError>();
+                foreach (var line in output.Split('\n'))
+                {
+                    if (line.Contains("): error"))
+                    {
+                        int start = line.IndexOf("(") + 1;
+                        int end = line.IndexOf("): error");
+                        var nums = line.Substring(start, end - start).Split(',');
+                        var pos = new Pos(int.Parse(nums[0]), int.Parse(nums[1]));
+
+                        var msg = line.Substring(end + 3);
+                        errors.Add(new CompileError(pos, msg));
+                    }
+                }
+
+                return errors;
+            }
+        }
+    }
+
+    /// <summary>
+    /// Validate in-process with Roslyn: no compiler process is spawned, and nothing is written or emitted.
+    /// The metadata references and an empty base compilation are built once and shared,
+    /// each check only parses the candidate and asks the compilation for diagnostics.
+    /// </summary>
+    public class RoslynValidator : Validator
+    {
+        public override string Name => "roslyn";
+
+        /// <summary>
+        /// References of the running framework, loaded once.
+        /// </summary>
+        internal static List<MetadataReference> FrameworkReferences => _references.Value;
+
+        private static Lazy<List<MetadataReference>> _references =
+            new Lazy<List<MetadataReference>>(LoadReferences);
+
+        private static Lazy<CSharpCompilation> _baseCompilation = new Lazy<CSharpCompilation>(() =>
+            CSharpCompilation.Create("candidate", references: _references.Value,
+                options: new CSharpCompilationOptions(OutputKind.ConsoleApplication)));
+
+        /// <summary>
+        /// References of the running framework, i.e. what `csc` would reference by default.
+        /// </summary>
+        private static List<MetadataReference> LoadReferences()
+        {
+            var assemblies = AppContext.GetData("TRUSTED_PLATFORM_ASSEMBLIES") as string;
+            var paths = assemblies == null
+                ? new List<string> { typeof(object).Assembly.Location }
+                : assemblies.Split(Path.PathSeparator).Where(p => p.EndsWith(".dll")).ToList();
+            Log.Debug("Roslyn: {0} metadata references loaded.", paths.Count);
+
+            return paths.Select(p => (MetadataReference)MetadataReference.CreateFromFile(p)).ToList();
+        }
+
+        public override List<CompileError> CheckAllFile(string sourceFile) =>
+            CheckAll(File.ReadAllText(sourceFile));
+
+        public override List<CompileError> CheckAll(string code)
+        {
+            var tree = CSharpSyntaxTree.ParseText(code);
+            var compilation = _baseCompilation.Value.AddSyntaxTrees(tree);
+
+            return Errors(compilation.GetDiagnostics()).ToList();
+        }
+
+        public override Func<string, List<CompileError>> StartSession(string baseCode) =>
+            new RoslynSession(baseCode, _baseCompilation.Value, "").CheckAll;
+
+        public override Optional<Func<string, List<CompileError>>> SyntaxCheck => ParseCheck.Some();
+
+        /// <summary>
+        /// Only parse a C# program, nothing is bound: its syntax errors, formatted as `csc` does.
+        /// </summary>
+        internal static readonly Func<string, List<CompileError>> ParseCheck = code =>
+            Errors(CSharpSyntaxTree.ParseText(code).GetDiagnostics()).ToList();
+
+        /// <summary>
+        /// Find the first error (by position) in source, formatted as `csc` does,
+        /// e.g. "error CS0022: Wrong number of indices inside []; expected 1".
+        /// Errors without a source location (e.g. missing `Main`) are ignored, as `csc` prints them
+        /// without a position.
+        /// </summary>
+        public static Optional<CompileError> FirstError(IEnumerable<Diagnostic> diagnostics) =>
+            Errors(diagnostics).TryFirst(_ => true);
+
+        /// <summary>
+        /// All errors in source, by position, formatted as `csc` does.
+        /// </summary>
+        public static IEnumerable<CompileError> Errors(IEnumerable<Diagnostic> diagnostics) =>
+            diagnostics
+                .Where(d => d.Severity == DiagnosticSeverity.Error && d.Location.IsInSource)
+                .OrderBy(d => d.Location.SourceSpan.Start)
+                .Select(ToCompileError);
+
+        public static CompileError ToCompileError(Diagnostic diagnostic)
+        {
+            // Roslyn counts from 0, while `csc` prints line and column from 1.
+            var start = diagnostic.Location.GetLineSpan().StartLinePosition;
+            var pos = new Pos(start.Line + 1, start.Character + 1);
+            return new CompileError(pos, Message(diagnostic));
+        }
+
+        internal static string Message(Diagnostic diagnostic) =>
+            $"error {diagnostic.Id}: {diagnostic.GetMessage(CultureInfo.InvariantCulture)}";
+    }
+
+    /// <summary>
+    /// Checks candidates as edits of a base program (a document of `context`), whose tree, compilation
+    /// and errors are kept. A candidate edit is applied as a text change, thus reparsed incrementally,
+    /// and if it is inside a method (or accessor) body, only that member is rechecked through the
+    /// semantic model: an edit inside a body affects no other member, thus the errors outside it are
+    /// the base ones, shifted. Other edits are checked as a whole document.
+    /// Only errors in the document are reported, except that an edit out of a body may change a signature
+    /// used by the other documents: then the other documents are rechecked too, and their new errors are
+    /// reported at the start of the edit.
+    /// </summary>
+    internal class RoslynSession
+    {
+        private SourceText _text;
+
+        private CSharpCompilation _context;
+
+        private string _path;
+
+        private Lazy<(SyntaxTree tree, CSharpCompilation compilation, List<Diagnostic> errors)> _base;
+
+        private Lazy<HashSet<string>> _baseSiblingErrors;
+
+        /// <param name="baseCode">Source text of the base program.</param>
+        /// <param name="context">Compilation of the other documents (if any), without the base program.</param>
+        /// <param name="path">Path of the document.</param>
+        public RoslynSession(string baseCode, CSharpCompilation context, string path)
+        {
+            this._text = SourceText.From(baseCode);
+            this._context = context;
+            this._path = path;
+            this._base = new Lazy<(SyntaxTree, CSharpCompilation, List<Diagnostic>)>(() => {
+                var tree = CSharpSyntaxTree.ParseText(_text, path: _path);
+                var compilation = _context.AddSyntaxTrees(tree);
+                return (tree, compilation, ErrorsIn(compilation, tree).ToList());
+            });
+            this._baseSiblingErrors = new Lazy<HashSet<string>>(() =>
+                new HashSet<string>(SiblingErrors(_base.Value.compilation, _base.Value.tree).Select(d => d.ToString())));
+        }
+
+        private static IEnumerable<Diagnostic> ErrorsIn(CSharpCompilation compilation, SyntaxTree tree) =>
+            compilation.GetSemanticModel(tree).GetDiagnostics();
+
+        /// <summary>
+        /// Errors in the documents other than `tree`.
+        /// </summary>
+        private static IEnumerable<Diagnostic> SiblingErrors(CSharpCompilation compilation, SyntaxTree tree) =>
+            compilation.SyntaxTrees.Where(t => t != tree)
+                .SelectMany(t => ErrorsIn(compilation, t))
+                .Where(d => d.Severity == DiagnosticSeverity.Error && d.Location.IsInSource);
+
+        /// <param name="editStart">Offset of the edit in `code`, where new errors of the other documents
+        /// are reported.</param>
+        private List<CompileError> CheckWhole(string code, int editStart)
+        {
+            var tree = CSharpSyntaxTree.ParseText(code, path: _path);
+            var compilation = _context.AddSyntaxTrees(tree);
+            var errors = RoslynValidator.Errors(ErrorsIn(compilation, tree)).ToList();
+
+            // The other documents are unchanged, thus their base errors are found again as is.
+            var start = tree.GetText().Lines.GetLinePosition(Math.Min(editStart, code.Length));
+            var pos = new Pos(start.Line + 1, start.Character + 1);
+            var broken = SiblingErrors(compilation, tree)
+                .Where(d => !_baseSiblingErrors.Value.Contains(d.ToString()))
+                .Select(d => new CompileError(pos,
+                    $"{RoslynValidator.Message(d)} (in {d.Location.GetLineSpan().Path})"));
+            return errors.Concat(broken)
+                .OrderBy(e => e.pos.line).ThenBy(e => e.pos.offset).ToList();
+        }
+
+        public List<CompileError> CheckAll(string code)
+        {
+            var baseCode = _text.ToString();
+            if (code == baseCode)
+            {
+                return RoslynValidator.Errors(_base.Value.errors).ToList();
+            }
+
+            // the edit: all but the common prefix and suffix
+            var prefix = 0;
+            while (prefix < baseCode.Length && prefix < code.Length && baseCode[prefix] == code[prefix])
+            {
+                prefix++;
+            }
+            var suffix = 0;
+            while (suffix < baseCode.Length - prefix && suffix < code.Length - prefix
+                && baseCode[baseCode.Length - 1 - suffix] == code[code.Length - 1 - suffix])
+            {
+                suffix++;
+            }
+            var oldSpan = TextSpan.FromBounds(prefix, baseCode.Length - suffix);
+            var newSpan = TextSpan.FromBounds(prefix, code.Length - suffix);
+            var delta = newSpan.Length - oldSpan.Length;
+
+            var (tree, compilation, errors) = _base.Value;
+            var oldMember = EnclosingMember(tree.GetRoot(), oldSpan);
+            if (oldMember == null)
+            {
+                return CheckWhole(code, prefix);
+            }
+
+            var newText = _text.WithChanges(new TextChange(oldSpan, code.Substring(newSpan.Start, newSpan.Length)));
+            var newTree = tree.WithChangedText(newText);
+            var newMember = EnclosingMember(newTree.GetRoot(), newSpan);
+            // The member must be reparsed as itself: e.g. an unbalanced brace would change other members.
+            if (newMember == null || newMember.RawKind != oldMember.RawKind
+                || newMember.Span.Start != oldMember.Span.Start
+                || newMember.Span.Length != oldMember.Span.Length + delta)
+            {
+                return CheckWhole(code, prefix);
+            }
+
+            var newCompilation = compilation.ReplaceSyntaxTree(tree, newTree);
+            var inside = newCompilation.GetSemanticModel(newTree).GetDiagnostics(newMember.Span)
+                .Where(d => d.Severity == DiagnosticSeverity.Error && d.Location.IsInSource)
+                .Select(d => (start: d.Location.SourceSpan.Start, diagnostic: d));
+            var outside = errors
+                .Where(d => d.Severity == DiagnosticSeverity.Error && d.Location.IsInSource
+                    && !oldMember.Span.Contains(d.Location.SourceSpan.Start))
+                .Select(d => {
+                    var start = d.Location.SourceSpan.Start;
+                    return (start: start < oldMember.Span.Start ? start : start + delta, diagnostic: d);
+                });
+
+            return outside.Concat(inside).OrderBy(e => e.start).Select(e => {
+                var pos = newText.Lines.GetLinePosition(e.start);
+                return new CompileError(new Pos(pos.Line + 1, pos.Character + 1),
+                    RoslynValidator.Message(e.diagnostic));
+            }).ToList();
+        }
+
+        /// <summary>
+        /// Find the method (or accessor) whose body strictly contains `span`, i.e. not its braces.
+        /// </summary>
+        private static RoslynNode EnclosingMember(RoslynNode root, TextSpan span)
+        {
+            foreach (var node in root.FindToken(span.Start).Parent.AncestorsAndSelf())
+            {
+                RoslynNode body = null;
+                if (node is BaseMethodDeclarationSyntax)
+                {
+                    var method = (BaseMethodDeclarationSyntax)node;
+                    body = (RoslynNode)method.Body ?? method.ExpressionBody;
+                }
+                else if (node is AccessorDeclarationSyntax)
+                {
+                    var accessor = (AccessorDeclarationSyntax)node;
+                    body = (RoslynNode)accessor.Body ?? accessor.ExpressionBody;
+                }
+                else if (node is MemberDeclarationSyntax)
+                {
+                    return null; // e.g. a field: not a body
+                }
+
+                if (body != null)
+                {
+                    return body.Span.Start < span.Start && span.End < body.Span.End ? node : null;
+                }
+            }
+            return null;
+        }
+    }
+
+    /// <summary>
+    /// Validate Java programs with `javac`, through the resident JVM helper: the helper keeps a
+    /// `javax.tools.JavaCompiler` and an in-memory file manager, and compiles candidates from their text.
+    /// If the helper is not available, fall back to one `javac` process per check.
+    /// </summary>
+    public class JavacValidator : Validator
+    {
+        public override string Name => "javac";
+
+        private Optional<HelperService> _service;
+
+        // Whether the helper was started for this validator only, thus closed with it.
+        private bool _owns_service;
+
+        /// <param name="service">The helper, if any.</param>
+        /// <param name="ownsService">Whether to close the helper when disposed; otherwise its owner does.</param>
+        public JavacValidator(Optional<HelperService> service, bool ownsService = false)
+        {
+            this._service = service;
+            this._owns_service = ownsService;
+        }
+
+        public override void Dispose()
+        {
+            if (_owns_service && _service.HasValue)
+            {
+                _service.Value.Close();
+                _service = Optional<HelperService>.Nothing;
+            }
+        }
+
+        public override List<CompileError> CheckAllFile(string sourceFile) =>
+            CheckAll(File.ReadAllText(sourceFile));
+
+        public override List<CompileError> CheckAll(string code)
+        {
+            if (_service.HasValue && _service.Value.IsAlive)
+            {
+                try
+                {
+                    var reply = _service.Value.Request(new[] { "compile" }, code);
+                    return ParseErrors(reply);
+                }
+                catch (HelperException e)
+                {
+                    Log.Warning("Helper failed to compile, fall back to javac process: {0}", e.Message);
+                }
+            }
+
+            return CheckByProcess(code);
+        }
+
+        /// <summary>
+        /// Parse the helper's reply: one `line \t column \t message` per error.
+        /// </summary>
+        public static List<CompileError> ParseErrors(string reply) =>
+            reply.Split('\n').Where(l => l.Any()).Select(line => {
+                var fields = line.Split(new[] { '\t' }, 3);
+                return new CompileError(new Pos(int.Parse(fields[0]), int.Parse(fields[1])), fields[2]);
+            }).ToList();
+
+        private static Regex PUBLIC_TYPE =
+            new Regex(@"public\s+(?:(?:abstract|final|static|strictfp)\s+)*(?:class|interface|enum)\s+(\w+)");
+
+        private List<CompileError> CheckByProcess(string code)
+        {
+            // A public class must be declared in a file of the same name.
+            var m = PUBLIC_TYPE.Match(code);
+            var name = m.Success ? m.Groups[1].Value : "Main";
+            var dir = CreateScratchDir("prem-javac");
+            var file = Path.Combine(dir, name + ".java");
+            File.WriteAllText(file, code);
+
+            try
+            {
+                return Subprocesses.Run(() => CompileByProcess(file, dir));
+            }
+            finally
+            {
+                DeleteScratchDir(dir);
+            }
+        }
+
+        private List<CompileError> CompileByProcess(string file, string dir)
+        {
+            using (var process = new Process())
+            {
+                process.StartInfo.FileName = "javac";
+                // NOTE: file name shouldn't have empty spaces.
+                process.StartInfo.Arguments = $"-proc:none -d {dir} {file}";
+                process.StartInfo.UseShellExecute = false;
+                process.StartInfo.RedirectStandardOutput = true;
+                process.StartInfo.RedirectStandardError = true;
+                Log.Debug("CLI: {0} {1}", process.StartInfo.FileName, process.StartInfo.Arguments);
+
+                if (!process.Start())
+                {
+                    Log.Error("Fatal: cannot invoke javac");
+                    Environment.Exit(1);
+                }
+
+                // An error is reported as: `<file>:<line>: error: <message>`, followed by
+                // the source line, and a caret line where `^` points at the column.
+                var lines = process.StandardError.ReadToEnd().Split('\n');
+                process.WaitForExit();
+                var prefix = file + ":";
+                var errors = new List<CompileError>();
+                for (int i = 0; i < lines.Length; i++)
+                {
+                    var line = lines[i];
+                    var end = line.IndexOf(": error: ");
+                    if (!line.StartsWith(prefix) || end < 0) continue;
+
+                    var lineNumber = int.Parse(line.Substring(prefix.Length, end - prefix.Length));
+                    var column = i + 2 < lines.Length ? lines[i + 2].IndexOf('^') + 1 : 0;
+                    var msg = line.Substring(end + 2);
+                    errors.Add(new CompileError(new Pos(lineNumber, column), msg));
+                }
+
+                return errors;
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+using System;
+using System.Collections.Generic;
+using System.Linq;
+using Microsoft.ProgramSynthesis.AST;
+
+using Prem.Transformer.TreeLang;
+using Prem.Util;
+
+namespace Prem.Transformer
+{
+    /// <summary>
+    /// A cheap necessary condition for a program to be applicable, found by analysing it once,
+    /// and checked against the `InputSummary` of an input before applying the program.
+    ///
+    /// A program fails as soon as one of its `Lift`s or `Select`s fails (nothing else catches the failure,
+    /// it reaches the root), thus it requires, for each
+    ///   `Lift(Err(old), label, k)`: at least `k` ancestors with `label` above the error node;
+    ///   `Lift(_, label, k)`: at least `k` nodes with `label` in the tree;
+    ///   `Select(_, label, _)`: at least one node with `label` in the tree.
+    /// </summary>
+    public class Precondition
+    {
+        /// <summary>
+        /// Label -> minimal number of ancestors with the label above the error node.
+        /// </summary>
+        public IReadOnlyDictionary<Label, int> errAncestors => _err_ancestors;
+
+        /// <summary>
+        /// Label -> minimal number of nodes with the label in the tree.
+        /// </summary>
+        public IReadOnlyDictionary<Label, int> labels => _labels;
+
+        private Dictionary<Label, int> _err_ancestors;
+
+        private Dictionary<Label, int> _labels;
+
+        public Precondition(Dictionary<Label, int> errAncestors, Dictionary<Label, int> labels)
+        {
+            this._err_ancestors = errAncestors;
+            this._labels = labels;
+        }
+
+        public bool Holds(InputSummary summary) =>
+            _err_ancestors.All(p => summary.ErrAncestorsOf(p.Key) >= p.Value) &&
+            _labels.All(p => summary.CountOf(p.Key) >= p.Value);
+
+        /// <summary>
+        /// Analyse a program.
+        /// </summary>
+        public static Precondition Of(ProgramNode program)
+        {
+            var precondition = new Precondition(new Dictionary<Label, int>(), new Dictionary<Label, int>());
+            precondition.Collect(program);
+            return precondition;
+        }
+
+        private void Collect(ProgramNode node)
+        {
+            var op = node as NonterminalNode;
+            if (op == null) return;
+
+            var args = op.Children.ToArray();
+            switch (op.Rule.ToString())
+            {
+                case nameof(Semantics.Lift):
+                {
+                    var label = (args[1] as LiteralNode)?.Value as Label;
+                    var k = (args[2] as LiteralNode)?.Value as int?;
+                    if (label == null || k == null) break;
+
+                    var count = Math.Max(1, k.Value); // `Lift` finds at least one ancestor
+                    Require(_labels, label, count);
+                    var source = args[0] as NonterminalNode;
+                    if (source != null && source.Rule.ToString() == nameof(Semantics.Err))
+                    {
+                        Require(_err_ancestors, label, count);
+                    }
+                    break;
+                }
+                case nameof(Semantics.Select):
+                {
+                    var label = (args[1] as LiteralNode)?.Value as Label;
+                    if (label != null)
+                    {
+                        Require(_labels, label, 1);
+                    }
+                    break;
+                }
+            }
+
+            foreach (var arg in args)
+            {
+                Collect(arg);
+            }
+        }
+
+        private static void Require(Dictionary<Label, int> counts, Label label, int count)
+        {
+            int current;
+            counts.TryGetValue(label, out current);
+            counts[label] = Math.Max(current, count);
+        }
+    }
+}
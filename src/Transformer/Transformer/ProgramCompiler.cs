@@ -0,0 +1,260 @@
+using System;
+using System.Collections.Generic;
+using System.Linq;
+using Microsoft.ProgramSynthesis.AST;
+using Microsoft.ProgramSynthesis.Utils;
+
+using Prem.Transformer.TreeLang;
+using Prem.Util;
+
+namespace Prem.Transformer
+{
+    /// <summary>
+    /// Lowers a TreeLang program into closures over `Semantics`, once, so that applying it needn't interpret
+    /// the AST node by node (as `ProgramNode.Invoke` does, with a `State` per call).
+    /// Each operator becomes a closure which calls its semantics function on the values of its operands;
+    /// the input variable and literals are bound when compiling.
+    ///
+    /// The costly subexpressions are evaluated through the memo of the input (see `EvalMemo`), shared by
+    /// all programs applied to it.
+    ///
+    /// As `Invoke`, an operator with a null operand yields null, and its semantics function is not called.
+    /// The usual failures, which are exceptions in `Semantics` (a missing variable, a child index out of
+    /// range, updating the root), are checked beforehand and yield null as well.
+    /// </summary>
+    public static class ProgramCompiler
+    {
+        private static ColorLogger Log = ColorLogger.Instance;
+
+        /// <summary>
+        /// Compile a program.
+        /// </summary>
+        /// <param name="program">The program, rooted at `Transform`.</param>
+        /// <returns>Its closure, which returns null if the program is not applicable; or nothing if some
+        /// operator is not supported, thus it must be interpreted.</returns>
+        public static Optional<Func<TInput, SyntaxNode>> Compile(ProgramNode program)
+        {
+            try
+            {
+                return Operand<SyntaxNode>(program).Some();
+            }
+            catch (Exception e) when (e is NotSupportedException || e is InvalidCastException)
+            {
+                Log.Debug("Program not compiled, will be interpreted: {0}", e.Message);
+                return Optional<Func<TInput, SyntaxNode>>.Nothing;
+            }
+        }
+
+        private static Func<TInput, T> Operand<T>(ProgramNode node)
+        {
+            var op = node as NonterminalNode;
+            if (op == null)
+            {
+                throw new NotSupportedException($"{node.GetType()} is not supported as an operand.");
+            }
+            return (Func<TInput, T>)Operator(op.Rule.ToString(), op.Children.ToArray());
+        }
+
+        private static T Literal<T>(ProgramNode node)
+        {
+            var literal = node as LiteralNode;
+            if (literal == null)
+            {
+                throw new NotSupportedException($"{node.GetType()} is not supported as a literal.");
+            }
+            return (T)literal.Value;
+        }
+
+        private static Delegate Operator(string name, ProgramNode[] args)
+        {
+            switch (name)
+            {
+                case nameof(Semantics.Transform):
+                {
+                    var target = Operand<SyntaxNode>(args[0]);
+                    var newTree = Operand<SyntaxNode>(args[1]);
+                    return new Func<TInput, SyntaxNode>(input => {
+                        var t = target(input);
+                        if (t == null || !t.HasParent()) return null;
+                        var n = newTree(input);
+                        return n == null ? null : Semantics.Transform(t, n);
+                    });
+                }
+                case nameof(Semantics.Err):
+                    return new Func<TInput, SyntaxNode>(Semantics.Err);
+                case nameof(Semantics.Var):
+                {
+                    var key = Literal<EnvKey>(args[1]);
+                    return new Func<TInput, SyntaxNode>(input =>
+                        input.HasKey(key) ? input.memo.Var(input, key) : null);
+                }
+                case nameof(Semantics.Select):
+                {
+                    var scope = Operand<SyntaxNode>(args[0]);
+                    var label = Literal<Label>(args[1]);
+                    var predicate = Operand<Func<SyntaxNode, bool>>(args[2]);
+                    var predicateKey = PredicateKey(args[2]);
+                    return new Func<TInput, SyntaxNode>(input => {
+                        var s = scope(input);
+                        var p = predicate(input);
+                        return s == null || p == null ? null : input.memo.Select(s, label, p, predicateKey);
+                    });
+                }
+                case nameof(Semantics.Sub):
+                {
+                    var node = Operand<Node>(args[0]);
+                    var index = Literal<int>(args[1]);
+                    return new Func<TInput, SyntaxNode>(input => {
+                        var n = node(input);
+                        return n == null || index < 0 || index >= n.children.Count ? null : Semantics.Sub(n, index);
+                    });
+                }
+                case nameof(Semantics.Lift):
+                {
+                    var source = Operand<SyntaxNode>(args[0]);
+                    var label = Literal<Label>(args[1]);
+                    var k = Literal<int>(args[2]);
+                    return new Func<TInput, Node>(input => {
+                        var s = source(input);
+                        return s == null ? null : input.memo.Lift(s, label, k);
+                    });
+                }
+                // Predicates do not depend on the input: build them once.
+                case nameof(Semantics.True):
+                {
+                    var p = Semantics.True();
+                    return new Func<TInput, Func<SyntaxNode, bool>>(_ => p);
+                }
+                case nameof(Semantics.HasFeature):
+                {
+                    var p = Semantics.HasFeature(Literal<Feature>(args[0]));
+                    return new Func<TInput, Func<SyntaxNode, bool>>(_ => p);
+                }
+                case nameof(Semantics.Or):
+                    return Combine(args, Semantics.Or);
+                case nameof(Semantics.And):
+                    return Combine(args, Semantics.And);
+                case nameof(Semantics.ConstToken):
+                {
+                    var s = Semantics.ConstToken(Literal<string>(args[0]));
+                    return new Func<TInput, string>(_ => s);
+                }
+                case nameof(Semantics.VarToken):
+                {
+                    var key = Literal<EnvKey>(args[1]);
+                    return new Func<TInput, string>(input => input.HasKey(key) ? Semantics.VarToken(input, key) : null);
+                }
+                case nameof(Semantics.ErrToken):
+                    return new Func<TInput, string>(Semantics.ErrToken);
+                case nameof(Semantics.New):
+                {
+                    var tree = Operand<PartialNode>(args[0]);
+                    return new Func<TInput, SyntaxNode>(input => {
+                        var t = tree(input);
+                        return t == null ? null : Semantics.New(t);
+                    });
+                }
+                case nameof(Semantics.Copy):
+                {
+                    var reference = Operand<SyntaxNode>(args[0]);
+                    return new Func<TInput, PartialNode>(input => {
+                        var r = reference(input);
+                        return r == null ? null : Semantics.Copy(r);
+                    });
+                }
+                case nameof(Semantics.Leaf):
+                {
+                    var label = Literal<Label>(args[0]);
+                    var token = Operand<string>(args[1]);
+                    return new Func<TInput, PartialNode>(input => {
+                        var t = token(input);
+                        return t == null ? null : Semantics.Leaf(label, t);
+                    });
+                }
+                case nameof(Semantics.Node):
+                {
+                    var label = Literal<Label>(args[0]);
+                    var children = Operand<IEnumerable<PartialNode>>(args[1]);
+                    return new Func<TInput, PartialNode>(input => {
+                        var c = children(input);
+                        return c == null ? null : Semantics.Node(label, c);
+                    });
+                }
+                case nameof(Semantics.Child):
+                {
+                    var tree = Operand<PartialNode>(args[0]);
+                    return new Func<TInput, IEnumerable<PartialNode>>(input => {
+                        var t = tree(input);
+                        return t == null ? null : Semantics.Child(t);
+                    });
+                }
+                case nameof(Semantics.Children):
+                {
+                    var head = Operand<PartialNode>(args[0]);
+                    var tail = Operand<IEnumerable<PartialNode>>(args[1]);
+                    return new Func<TInput, IEnumerable<PartialNode>>(input => {
+                        var h = head(input);
+                        var t = tail(input);
+                        return h == null || t == null ? null : Semantics.Children(h, t);
+                    });
+                }
+                case nameof(Semantics.Append):
+                {
+                    var frontParent = Operand<SyntaxNode>(args[0]);
+                    var tail = Operand<IEnumerable<PartialNode>>(args[1]);
+                    return new Func<TInput, IEnumerable<PartialNode>>(input => {
+                        var f = frontParent(input);
+                        var t = tail(input);
+                        return f == null || t == null ? null : Semantics.Append(f, t);
+                    });
+                }
+                default:
+                    throw new NotSupportedException($"Operator {name} is not supported.");
+            }
+        }
+
+        /// <summary>
+        /// A key of a predicate, equal for predicates of the same structure (features are compared by value),
+        /// so that `Select`s of different programs can share results; null if unknown.
+        /// </summary>
+        private static object PredicateKey(ProgramNode node)
+        {
+            var op = node as NonterminalNode;
+            if (op == null) return null;
+
+            var args = op.Children.ToArray();
+            var name = op.Rule.ToString();
+            switch (name)
+            {
+                case nameof(Semantics.True):
+                    return name;
+                case nameof(Semantics.HasFeature):
+                {
+                    var feature = (args[0] as LiteralNode)?.Value as Feature;
+                    return feature == null ? null : (object)(name, feature);
+                }
+                case nameof(Semantics.Or):
+                case nameof(Semantics.And):
+                {
+                    var left = PredicateKey(args[0]);
+                    var right = PredicateKey(args[1]);
+                    return left == null || right == null ? null : (object)(name, left, right);
+                }
+                default:
+                    return null;
+            }
+        }
+
+        private static Delegate Combine(ProgramNode[] args,
+            Func<Func<SyntaxNode, bool>, Func<SyntaxNode, bool>, Func<SyntaxNode, bool>> combinator)
+        {
+            var left = Operand<Func<SyntaxNode, bool>>(args[0]);
+            var right = Operand<Func<SyntaxNode, bool>>(args[1]);
+            return new Func<TInput, Func<SyntaxNode, bool>>(input => {
+                var l = left(input);
+                var r = right(input);
+                return l == null || r == null ? null : combinator(l, r);
+            });
+        }
+    }
+}
@@ -40,23 +40,94 @@ namespace Prem.Transformer
         private static ColorLogger Log = ColorLogger.Instance;
 
         private Symbol _inputSymbol;
-        protected ProgramNode _program;
+        private Lazy<ProgramNode> _lazy_program;
+        protected ProgramNode _program => _lazy_program.Value;
+
+        // Compiled on first application, see `ProgramCompiler`; nothing if it must be interpreted.
+        private Lazy<Optional<Func<TInput, SyntaxNode>>> _compiled;
+
+        private Lazy<Precondition> _precondition;
+
+        /// <summary>
+        /// Necessary condition for the program to be applicable, analysed on first access unless given.
+        /// </summary>
+        public Precondition precondition => _precondition.Value;
+
+        /// <summary>
+        /// The program, decoded on first access if it was loaded lazily.
+        /// </summary>
+        public ProgramNode Program => _program;
 
         public double score { get; }
 
         public TProgram(ProgramNode program, double score, Symbol inputSymbol)
         {
-            this._program = program;
+            this._lazy_program = new Lazy<ProgramNode>(() => program);
             this.score = score;
             this._inputSymbol = inputSymbol;
+            this._compiled = new Lazy<Optional<Func<TInput, SyntaxNode>>>(() => ProgramCompiler.Compile(_program));
+            this._precondition = new Lazy<Precondition>(() => Precondition.Of(_program));
         }
 
+        /// <summary>
+        /// A program which is only decoded (by `decoder`) when it is first used.
+        /// Loading a rule lib thus never pays for the programs that no testcase reaches.
+        /// </summary>
+        /// <param name="decoder">Decode the program, called at most once.</param>
+        /// <param name="score">Ranking score.</param>
+        /// <param name="precondition">Its precondition, if known: an input failing it never decodes the program.
+        /// </param>
+        public TProgram(Func<ProgramNode> decoder, double score, Precondition precondition = null)
+        {
+            this._lazy_program = new Lazy<ProgramNode>(decoder);
+            this.score = score;
+            this._compiled = new Lazy<Optional<Func<TInput, SyntaxNode>>>(() => ProgramCompiler.Compile(_program));
+            this._precondition = precondition == null ? new Lazy<Precondition>(() => Precondition.Of(_program))
+                : new Lazy<Precondition>(() => precondition);
+        }
+
+        private Symbol InputSymbol => _inputSymbol ?? (_inputSymbol = _program.Grammar.InputSymbol);
+
+        /// <summary>
+        /// Apply the program to an input, through its compiled closure (built on first use),
+        /// or by `Interpret` if it cannot be compiled. An input failing the precondition is rejected
+        /// right away.
+        /// </summary>
+        /// <returns>The output, or nothing if the program is not applicable.</returns>
         public Optional<SyntaxNode> Apply(TInput input)
         {
-            // var inputState = State.CreateForExecution(TLearner.InputSymbol, input);
-            var inputState = State.CreateForExecution(_inputSymbol, input);
+            if (!precondition.Holds(input.memo.Summary(input)))
+            {
+                return Optional<SyntaxNode>.Nothing;
+            }
+
+            var compiled = _compiled.Value;
+            if (!compiled.HasValue)
+            {
+                return Interpret(input);
+            }
+
+            try
+            {
+                var result = compiled.Value(input);
+                return result == null ? Optional<SyntaxNode>.Nothing : result.Some();
+            }
+            catch (Exception e) // a failure not checked by `ProgramCompiler`
+            {
+                Log.Debug("Exception caught when applying program: {0}: {1}", e.GetType(), e.Message);
+                return Optional<SyntaxNode>.Nothing;
+            }
+        }
+
+        /// <summary>
+        /// Apply the program by interpreting it with `ProgramNode.Invoke`: the reference semantics of `Apply`.
+        /// </summary>
+        public Optional<SyntaxNode> Interpret(TInput input)
+        {
             try 
             {
+                // var inputState = State.CreateForExecution(TLearner.InputSymbol, input);
+                var inputState = State.CreateForExecution(InputSymbol, input);
                 var result = _program.Invoke(inputState) as SyntaxNode;
                 return result == null ? Optional<SyntaxNode>.Nothing : result.Some();
             }
@@ -74,7 +145,7 @@ namespace Prem.Transformer
         public JObject DumpJSON()
         {
             var obj = new JObject();
-            var serialization = new ASTSerialization.Serialization(TLearner._grammar);
+            var serialization = new ASTSerialization.Serialization(TLearner.Grammar);
             var serializedAST = serialization.PrintXML(_program);
             // File.WriteAllText("/Users/xrc/Repository/Prem/logs/ast.xml",x);
             // System.Xml.Serialization.XmlSerializer xs = new System.Xml.Serialization.XmlSerializer(typeof(ProgramNode));
@@ -84,7 +155,7 @@ namespace Prem.Transformer
             // var gm = _program.Grammar;
             // var y = ProgramNode.Parse(x, gm,ASTSerializationFormat.XML);
             // var z = System.Xml.Linq.XElement.Parse(x);
-            // var y = ProgramNode.ParseXML(TLearner._grammar,z);
+            // var y = ProgramNode.ParseXML(TLearner.Grammar,z);
             obj.Add("program", serializedAST.ToString());
             obj.Add("score", score);
             return obj;
@@ -94,7 +165,7 @@ namespace Prem.Transformer
         public static TProgram FromJSON(JObject obj)
         {
             var src = (string)obj["program"];
-            var serialization = new ASTSerialization.Serialization(TLearner._grammar);
+            var serialization = new ASTSerialization.Serialization(TLearner.Grammar);
             var prog = serialization.Parse(System.Xml.Linq.XElement.Parse(src));
             var score = (double)obj["score"];
             return new TProgram(prog, score, TLearner.InputSymbol);
@@ -114,9 +185,9 @@ namespace Prem.Transformer
         }
         public TProgram(XElement xe)
         {
-            _program = ASTSerialization.Serialization.makeObject(xe.Element("Attr-program")) as ProgramNode;
+            var program = ASTSerialization.Serialization.makeObject(xe.Element("Attr-program")) as ProgramNode;
+            _lazy_program = new Lazy<ProgramNode>(() => program);
             score = (double) ASTSerialization.Serialization.makeObject(xe.Element("Attr-score"));
-            _inputSymbol = TLearner.InputSymbol;
         }
     }
 
@@ -124,50 +195,69 @@ namespace Prem.Transformer
     /// <summary>
     /// A tree transformer for synthesizing programs expressed with the `TreeLang` described in
     /// `Prem.Transformer.TreeLang`.
+    /// 
+    /// The grammar is compiled once per process and shared, as it is immutable once compiled.
+    /// Each learner owns its synthesis engine and strategy, built on its first task and reused
+    /// for later ones, so that different learners can synthesize concurrently.
     /// </summary>
-    public static class TLearner
+    public class TLearner
     {
         private static ColorLogger Log = ColorLogger.Instance;
 
-        private static SynthesisEngine _engine;
-        public static Symbol InputSymbol;
-        private static RankingScore _scorer;
-
-        private static Stopwatch _stopwatch = new Stopwatch();
-
-        public static Grammar _grammar;
-
-        public static void Setup()
-        {
-            _grammar = LoadGrammar("TreeLang.grammar",
+        private static Lazy<Grammar> _shared_grammar = new Lazy<Grammar>(() =>
+            LoadGrammar("TreeLang.grammar",
                 CompilerReference.FromAssemblyFiles(
                     typeof(Microsoft.ProgramSynthesis.Utils.Record).GetTypeInfo().Assembly,
                     typeof(Semantics).GetTypeInfo().Assembly,
-                    typeof(SyntaxNode).GetTypeInfo().Assembly));
-            if (_grammar == null)
+                    typeof(SyntaxNode).GetTypeInfo().Assembly)));
+
+        /// <summary>
+        /// The compiled grammar, compiled on the first call.
+        /// </summary>
+        public static Grammar Grammar
+        {
+            get
             {
-                Log.Error("Failed to compile TreeLang.grammar.");
-                return;
+                var grammar = _shared_grammar.Value;
+                if (grammar == null)
+                {
+                    Log.Error("Failed to compile TreeLang.grammar.");
+                }
+                return grammar;
             }
+        }
+
+        public static Symbol InputSymbol => Grammar.InputSymbol;
+
+        private SynthesisEngine _engine;
+
+        private PremStrategy _strategy;
 
-            InputSymbol = _grammar.InputSymbol;
+        private RankingScore _scorer;
 
-            _scorer = new RankingScore(_grammar);
-            _engine = new SynthesisEngine(_grammar, new SynthesisEngine.Config
+        private Stopwatch _stopwatch = new Stopwatch();
+
+        private void Setup()
+        {
+            var grammar = Grammar;
+            _scorer = new RankingScore(grammar);
+            _strategy = new PremStrategy(grammar);
+            _engine = new SynthesisEngine(grammar, new SynthesisEngine.Config
             {
-                Strategies = new ISynthesisStrategy[]
-                {
-                    new PremStrategy(_grammar),
-                },
+                Strategies = new ISynthesisStrategy[] { _strategy },
                 UseThreads = false
             });
 
             Log.Debug("Transformer: synthesis engine is setup.");
         }
 
-        public static List<TProgram> Learn(IEnumerable<TExample> examples, int k)
+        public List<TProgram> Learn(IEnumerable<TExample> examples, int k)
         {
-            Setup();
+            if (_engine == null)
+            {
+                Setup();
+            }
+            _strategy.Reset();
             var constraints = examples.ToDictionary(
                 e => State.CreateForLearning(InputSymbol, e.input),
                 e => (object)e.output
@@ -199,7 +289,7 @@ namespace Prem.Transformer
             }
 
             return programSet.RealizedPrograms.Take(k)
-                .Select(p => new TProgram(p, p.GetFeatureValue(_scorer),InputSymbol))
+                .Select(p => new TProgram(p, p.GetFeatureValue(_scorer), InputSymbol))
                 .ToList();
         }
 
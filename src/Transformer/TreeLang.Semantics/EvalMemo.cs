@@ -0,0 +1,58 @@
+using System;
+using System.Collections.Concurrent;
+using System.Threading;
+
+using Prem.Util;
+
+namespace Prem.Transformer.TreeLang
+{
+    /// <summary>
+    /// Memoizes the costly subexpressions of programs applied to one input tree, so that the rules of
+    /// all rule sets share them: `Var` (which scans all leaves), `Lift` and `Select` (which scan subtrees).
+    /// `Err` and `Sub` are mere field and child accesses, thus not memoized; as values are keyed by their
+    /// operands (nodes by reference), `Lift(Err(old), ...)` and `Select(Sub(...), ...)` of different rules
+    /// still hit the same entries.
+    ///
+    /// A `Var` is keyed by the token it looks for, not the variable: rule sets bind variables differently,
+    /// but the leaves of the tree do not change. A `Select` is keyed by the structure of its predicate,
+    /// see `ProgramCompiler`.
+    ///
+    /// The memo also keeps the `InputSummary` of the input, built on first use.
+    ///
+    /// One memo is shared by all `TInput`s of the same input, which must not be modified meanwhile.
+    /// </summary>
+    public class EvalMemo
+    {
+        private InputSummary _summary;
+
+        public InputSummary Summary(TInput input) =>
+            LazyInitializer.EnsureInitialized(ref _summary, () => new InputSummary(input.inputTree, input.errNode));
+
+        private ConcurrentDictionary<string, SyntaxNode> _vars = new ConcurrentDictionary<string, SyntaxNode>();
+
+        private ConcurrentDictionary<(SyntaxNode source, Label label, int k), Node> _lifts =
+            new ConcurrentDictionary<(SyntaxNode source, Label label, int k), Node>();
+
+        private ConcurrentDictionary<(SyntaxNode scope, Label label, object predicate), SyntaxNode> _selects =
+            new ConcurrentDictionary<(SyntaxNode scope, Label label, object predicate), SyntaxNode>();
+
+        public SyntaxNode Var(TInput input, EnvKey key)
+        {
+            var token = input[key];
+            return token == null ? Semantics.Var(input, key) : _vars.GetOrAdd(token, _ => Semantics.Var(input, key));
+        }
+
+        public Node Lift(SyntaxNode source, Label label, int k) =>
+            _lifts.GetOrAdd((source, label, k), t => Semantics.Lift(t.source, t.label, t.k));
+
+        /// <summary>
+        /// Memoized `Select`.
+        /// </summary>
+        /// <param name="predicateKey">Structural key of `predicate`, equal for equivalent predicates;
+        /// null if unknown, then it is not memoized.</param>
+        public SyntaxNode Select(SyntaxNode scope, Label label, Func<SyntaxNode, bool> predicate,
+            object predicateKey) =>
+            predicateKey == null ? Semantics.Select(scope, label, predicate)
+                : _selects.GetOrAdd((scope, label, predicateKey), _ => Semantics.Select(scope, label, predicate));
+    }
+}
@@ -0,0 +1,56 @@
+using System.Collections.Generic;
+
+using Prem.Util;
+
+namespace Prem.Transformer.TreeLang
+{
+    /// <summary>
+    /// Label counts of an input tree, against which the preconditions of programs are checked:
+    /// the number of nodes of each label, and the number of (strict) ancestors of each label above
+    /// the error node.
+    /// </summary>
+    public class InputSummary
+    {
+        private Dictionary<Label, int> _labels = new Dictionary<Label, int>();
+
+        private Dictionary<Label, int> _err_ancestors = new Dictionary<Label, int>();
+
+        public InputSummary(SyntaxNode inputTree, SyntaxNode errNode)
+        {
+            foreach (var node in inputTree.GetSubtrees())
+            {
+                Increment(_labels, node.label);
+            }
+
+            for (var node = errNode; node != null && node.HasParent(); node = node.parent)
+            {
+                Increment(_err_ancestors, node.parent.label);
+            }
+        }
+
+        private static void Increment(Dictionary<Label, int> counts, Label label)
+        {
+            int count;
+            counts.TryGetValue(label, out count);
+            counts[label] = count + 1;
+        }
+
+        /// <summary>
+        /// Number of nodes with `label` in the tree.
+        /// </summary>
+        public int CountOf(Label label)
+        {
+            int count;
+            return _labels.TryGetValue(label, out count) ? count : 0;
+        }
+
+        /// <summary>
+        /// Number of ancestors with `label` above the error node.
+        /// </summary>
+        public int ErrAncestorsOf(Label label)
+        {
+            int count;
+            return _err_ancestors.TryGetValue(label, out count) ? count : 0;
+        }
+    }
+}
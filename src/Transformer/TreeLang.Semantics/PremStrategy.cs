@@ -106,6 +106,16 @@ namespace Prem.Transformer.TreeLang
         private Dictionary<EnvKey, PremSpec<TInput, Leaf>> varNodeDict =
             new Dictionary<EnvKey, PremSpec<TInput, Leaf>>();
 
+        /// <summary>
+        /// Clear the sources computed for the previous learning task.
+        /// Must be called before a new task, as a strategy is reused by all tasks of an engine.
+        /// </summary>
+        public void Reset()
+        {
+            errNodes = new PremSpec<TInput, Leaf>();
+            varNodeDict = new Dictionary<EnvKey, PremSpec<TInput, Leaf>>();
+        }
+
         /// <summary>
         /// Learning a set of `program`s, i.e. tree transformers, that are consistent with the specification.
         /// </summary>
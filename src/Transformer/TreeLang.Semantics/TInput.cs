@@ -18,11 +18,17 @@ namespace Prem.Transformer.TreeLang
 
         private Env env { get; }
 
-        public TInput(SyntaxNode inputTree, SyntaxNode errNode, Env env)
+        /// <summary>
+        /// Memo of subexpressions on this input tree, possibly shared with other `TInput`s of it.
+        /// </summary>
+        public EvalMemo memo { get; }
+
+        public TInput(SyntaxNode inputTree, SyntaxNode errNode, Env env, EvalMemo memo = null)
         {
             this.inputTree = inputTree;
             this.errNode = errNode;
             this.env = env;
+            this.memo = memo ?? new EvalMemo();
         }
 
         public string this[EnvKey key]
@@ -30,6 +36,8 @@ namespace Prem.Transformer.TreeLang
             get => env[key];
         }
 
+        public bool HasKey(EnvKey key) => env.ContainsKey(key);
+
         public Optional<EnvKey> TryFind(string token)
         {
             foreach (var p in env)
@@ -155,14 +155,17 @@ namespace Prem.Util
             // check priority
             if (level > DisplayLevel) return;
 
-            // display text
-            if (ShowColor)
+            // display text, one message at a time, or colors get mixed up among threads
+            lock (padlock)
             {
-                Colorful.Console.WriteLine(text, LevelColor(level));
-            }
-            else
-            {
-                Console.WriteLine(text);
+                if (ShowColor)
+                {
+                    Colorful.Console.WriteLine(text, LevelColor(level));
+                }
+                else
+                {
+                    Console.WriteLine(text);
+                }
             }
         }
 
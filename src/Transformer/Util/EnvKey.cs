@@ -9,6 +9,8 @@ namespace Prem.Util
     {
         private List<int> keys = new List<int>();
 
+        public IReadOnlyList<int> Keys => keys;
+
         public EnvKey(int id)
         {
             this.keys.Add(id);
@@ -4,7 +4,6 @@ using System.Collections.Generic;
 using System.Diagnostics;
 using System.Linq;
 using Microsoft.ProgramSynthesis.Utils;
-using Newtonsoft.Json.Linq;
 using Optional;
 
 namespace Prem.Util
@@ -208,12 +207,21 @@ namespace Prem.Util
         /// <param name="code"></param>
         protected SyntaxNode(SyntaxKind kind, SyntaxNodeContext context, int depth, 
             Label label, string code = "")
+            : this(kind, context, depth, label, code, context.AllocateId())
+        {
+        }
+
+        /// <summary>
+        /// Internal base constructor, with an `id` allocated in advance from the `context`.
+        /// </summary>
+        protected SyntaxNode(SyntaxKind kind, SyntaxNodeContext context, int depth,
+            Label label, string code, int id)
         {
             this.kind = kind;
             this.context = context;
             this.depth = depth;
             this.label = label;
-            this.id = context.AllocateId();
+            this.id = id;
             this.code = code;
             this.matches = new List<SyntaxNode>();
         }
@@ -369,21 +377,6 @@ namespace Prem.Util
         public static PartialNode CreatePartial(Label label, string code, Pos pos = null) =>
             new PartialNode(null, (context, depth) => new Token(context, depth, label, code, pos));
 
-        /// <summary>
-        /// This group of functions are handy constructors of partial nodes,
-        /// extracting necessary information from a JSON object.
-        /// </summary>
-        /// <param name="obj"></param>
-        /// <returns></returns>
-        public static PartialNode CreatePartialFromJSON(JObject obj)
-        {
-            var label = new Label((int)obj["label"], (string)obj["name"]);
-            var code = (string)obj["code"];
-            var pos = new Pos((int)obj["line"], (int)obj["pos"]);
-
-            return CreatePartial(label, code, pos);
-        }
-
         public override bool IdenticalTo(SyntaxNode that)
         {
             return that.kind == SyntaxKind.TOKEN && that.label.Equals(label) && that.code == code;
@@ -408,15 +401,6 @@ namespace Prem.Util
         public static PartialNode CreatePartial(Label label, string code, Pos pos) =>
             new PartialNode(null, (context, depth) => new Error(context, depth, label, code, pos));
 
-        public static PartialNode CreatePartialFromJSON(JObject obj)
-        {
-            var label = new Label((int)obj["label"], "ERROR");
-            var code = (string)obj["code"];
-            var pos = new Pos((int)obj["line"], (int)obj["pos"]);
-
-            return CreatePartial(label, code, pos);
-        }
-
         public override bool IdenticalTo(SyntaxNode that)
         {
             return that.kind == SyntaxKind.ERROR && that.label.Equals(label) && that.code == code;
@@ -469,6 +453,21 @@ namespace Prem.Util
                 this.children.Select(t => t.treeHash));
         }
 
+        /// <summary>
+        /// Construct a node from its children, which are already built at depth `depth + 1`.
+        /// The `id` of this node must be allocated before building the children,
+        /// so that ids are still in pre-order.
+        /// </summary>
+        public Node(SyntaxNodeContext context, int depth, int id, Label label,
+            List<SyntaxNode> children, string code = "")
+            : base(SyntaxKind.NODE, context, depth, label, code, id)
+        {
+            this.children = children;
+            this.children.ForEach(t => t.parent = this);
+            this.treeHash = Hash.Combine(label.GetHashCode(), 
+                this.children.Select(t => t.treeHash));
+        }
+
         public override PartialNode ToPartial() => new PartialNode(this,
             (context, depth) => new Node(context, depth, label, 
                 children.Select(t => t.ToPartial())));
@@ -477,24 +476,6 @@ namespace Prem.Util
             IEnumerable<PartialNode> builders, string code = "") => new PartialNode(null,
             (context, depth) => new Node(context, depth, label, builders, code));
 
-        public static PartialNode CreatePartialFromJSON(JObject obj)
-        {
-            var label = new Label((int)obj["label"], (string)obj["name"]);
-            var code = (string)obj["code"];
-            var builders = obj["children"]
-                .Select(t => (JObject)t)
-                .Select(o =>
-                    {
-                        var kind = (string)o["kind"];
-                        return kind == "node" ? Node.CreatePartialFromJSON(o)
-                            : kind == "list" ? Node.CreatePartialFromJSON(o)
-                            : kind == "leaf" ? Token.CreatePartialFromJSON(o)
-                            : Error.CreatePartialFromJSON(o);
-                    });
-
-            return CreatePartial(label, builders, code);
-        }
-
         public override int GetNumChildren() => children.Count;
 
         /// <summary>
@@ -1,6 +1,8 @@
 using Optional;
-using Newtonsoft.Json.Linq;
+using Newtonsoft.Json;
 using System;
+using System.Globalization;
+using System.IO;
 using System.Linq;
 using Microsoft.ProgramSynthesis.Utils;
 using System.Collections.Generic;
@@ -26,15 +28,154 @@ namespace Prem.Util
 
         public int AllocateId() => _counter.AllocateId();
 
-        public static SyntaxNodeContext FromJSON(string json)
+        public static SyntaxNodeContext FromJSON(string json) => FromJSON(new StringReader(json));
+
+        /// <summary>
+        /// Build a tree from the JSON output of UTrans, in a single pass over the JSON tokens:
+        /// nodes are constructed top-down as their objects are read, without any intermediate
+        /// JSON objects or partial nodes.
+        /// </summary>
+        /// <param name="json">JSON text, e.g. the stdout of UTrans.</param>
+        /// <returns>The tree context.</returns>
+        public static SyntaxNodeContext FromJSON(TextReader json)
         {
             var context = new SyntaxNodeContext();
-            var obj = JObject.Parse(json);
-            context.root = Node.CreatePartialFromJSON(obj).Instantiate(context, 0);
+            using (var reader = new JsonTextReader(json))
+            {
+                reader.DateParseHandling = DateParseHandling.None; // code like "2019-01-01" stays a string
+                if (!reader.Read() || reader.TokenType != JsonToken.StartObject)
+                {
+                    throw new JsonReaderException("Expect a JSON object for the syntax tree.");
+                }
+                context.root = ReadSyntaxNode(reader, context, 0, true);
+            }
+
+            return context;
+        }
+
+        /// <summary>
+        /// Read a node from the object which `reader` is positioned at.
+        /// Its properties may appear in any order: the id is allocated at the latest when the children start,
+        /// thus ids are in pre-order.
+        /// </summary>
+        private static SyntaxNode ReadSyntaxNode(JsonReader reader, SyntaxNodeContext context, int depth, bool isRoot)
+        {
+            string kind = null, name = null, code = null;
+            int label = 0, line = 0, pos = 0;
+            int id = -1;
+            List<SyntaxNode> children = null;
+
+            while (reader.Read() && reader.TokenType == JsonToken.PropertyName)
+            {
+                var property = (string)reader.Value;
+                reader.Read();
+                switch (property)
+                {
+                    case "kind":
+                        kind = (string)reader.Value;
+                        break;
+                    case "label":
+                        label = Convert.ToInt32(reader.Value, CultureInfo.InvariantCulture);
+                        break;
+                    case "name":
+                        name = (string)reader.Value;
+                        break;
+                    case "code":
+                        code = (string)reader.Value;
+                        break;
+                    case "line":
+                        line = Convert.ToInt32(reader.Value, CultureInfo.InvariantCulture);
+                        break;
+                    case "pos":
+                        pos = Convert.ToInt32(reader.Value, CultureInfo.InvariantCulture);
+                        break;
+                    case "children":
+                        id = context.AllocateId();
+                        children = new List<SyntaxNode>();
+                        while (reader.Read() && reader.TokenType == JsonToken.StartObject)
+                        {
+                            children.Add(ReadSyntaxNode(reader, context, depth + 1, false));
+                        }
+                        break;
+                    default:
+                        reader.Skip();
+                        break;
+                }
+            }
+
+            // The root is always a node, whatever its kind is.
+            if (isRoot || kind == "node" || kind == "list")
+            {
+                if (id < 0) id = context.AllocateId();
+                return new Node(context, depth, id, new Label(label, name), children ?? new List<SyntaxNode>(), code);
+            }
+            if (kind == "leaf")
+            {
+                return new Token(context, depth, new Label(label, name), code, new Pos(line, pos));
+            }
+            return new Error(context, depth, new Label(label, "ERROR"), code, new Pos(line, pos));
+        }
+
+        /// <summary>
+        /// Copy this tree, e.g. to take another leaf as the error node, leaving this one intact.
+        /// </summary>
+        public SyntaxNodeContext Copy() => Copy(root, leaf => leaf.pos);
 
+        /// <summary>
+        /// Copy a tree, relocating its leaves to where they are in `string.Join(" ", root.ToTokenSeq())`,
+        /// i.e. all on line 1 and separated by single spaces, which is how candidate programs are written.
+        /// Error leaves print nothing, thus are placed nowhere (at 0, 0).
+        /// </summary>
+        /// <param name="root">Root of the tree.</param>
+        /// <returns>The copy, or nothing if some token spans several lines.</returns>
+        public static Optional<SyntaxNodeContext> RelocateOnOneLine(SyntaxNode root)
+        {
+            if (root.Leaves().Any(l => l is Token && (l.code.Contains('\n') || l.code.Contains('\r'))))
+            {
+                return Optional<SyntaxNodeContext>.Nothing;
+            }
+
+            var column = 1;
+            return Copy(root, leaf => { // leaves are visited from left to right
+                if (leaf is Token)
+                {
+                    var pos = new Pos(1, column);
+                    column += leaf.code.Length + 1;
+                    return pos;
+                }
+
+                column += 1; // an empty token, still followed by a separator
+                return new Pos(0, 0);
+            }).Some();
+        }
+
+        private static SyntaxNodeContext Copy(SyntaxNode root, Func<Leaf, Pos> locate)
+        {
+            var context = new SyntaxNodeContext();
+            context.root = CopyNode(root, context, 0, locate);
             return context;
         }
 
+        private static SyntaxNode CopyNode(SyntaxNode node, SyntaxNodeContext context, int depth,
+            Func<Leaf, Pos> locate)
+        {
+            switch (node)
+            {
+                case Node n:
+                    var id = context.AllocateId(); // before children: ids are in pre-order
+                    var children = new List<SyntaxNode>(n.children.Count);
+                    foreach (var child in n.children)
+                    {
+                        children.Add(CopyNode(child, context, depth + 1, locate));
+                    }
+                    return new Node(context, depth, id, n.label, children, n.code);
+                case Token t:
+                    return new Token(context, depth, t.label, t.code, locate(t));
+                default:
+                    return new Error(context, depth, node.label, node.code, locate((Leaf)node));
+            }
+        }
+
         public Optional<Leaf> FindLeafWhere(Func<Leaf, bool> predicate) =>
             root.GetSubtrees().TryFirst(n => n is Leaf && predicate((Leaf)n)).MaybeCast<Leaf>();
 